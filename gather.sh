@@ -18,27 +18,11 @@ URL1="http://www.moscow_city.vybory.izbirkom.ru/region/region/moscow_city?action
 # MOSCOW AREA MAYOR ELECTIONS, 2013
 URL2="http://www.moscow_reg.vybory.izbirkom.ru/region/region/moscow_reg?action=show&root=1&tvd=75070001571771&vrn=75070001571767&region=50&global=&sub_region=0&prver=0&pronetvd=null&vibid=75070001571771&type=222"
 
-SLEEP=600
-
-mkdir -p data/moscow/csv data/moscow/web data/mo/csv/ data/mo/web
-
-while true; do
-    DATE=$(date +%Y%m%d-%H%M%S)
-    java -Dhttp.agent="CIKRF Spider (Java); please report abuse to IP owner;" -jar cikrf-spider.jar -r "$URL1" -p cikrf-web-moscow-$DATE/
-    java -Dhttp.agent="CIKRF Spider (Java); please report abuse to IP owner;" -jar cikrf-spider.jar -r "$URL2" -p cikrf-web-mo-$DATE/
-    java -jar cikrf-parser.jar -p cikrf-web-moscow-$DATE/ -o cikrf-csv-moscow-$DATE/
-    java -jar cikrf-parser.jar -p cikrf-web-mo-$DATE/     -o cikrf-csv-mo-$DATE/
-    tar -c -z -f cikrf-web-moscow-$DATE.tar.gz -C cikrf-web-moscow-$DATE/ .
-    tar -c -z -f cikrf-web-mo-$DATE.tar.gz     -C cikrf-web-mo-$DATE/ .
-    tar --mtime="8 Sep 2013" -c -z -f cikrf-csv-moscow-$DATE.tar.gz -C cikrf-csv-moscow-$DATE .
-    tar --mtime="8 Sep 2013" -c -z -f cikrf-csv-mo-$DATE.tar.gz -C cikrf-csv-mo-$DATE .
-    mv cikrf-csv-moscow-*.tar.gz data/moscow/csv/
-    mv cikrf-web-moscow-*.tar.gz data/moscow/web/
-    mv cikrf-csv-mo-*.tar.gz     data/mo/csv/
-    mv cikrf-web-mo-*.tar.gz     data/mo/web/
-    rm -rf cikrf-web-*/
-    rm -rf cikrf-csv-*/
-
-    echo "Sleeping for $SLEEP seconds"
-    sleep $SLEEP
-done
+# Crawls both elections every 600 seconds, until killed.
+# Each crawl leaves the snapshot in data/<name>/archive/snapshots/cikrf-web-<name>-<DATE>.txt,
+# and CSVs in data/<name>/csv/cikrf-csv-<name>-<DATE>.tar.gz.
+# Materialize pages with: java -cp cikrf-spider.jar net.shipilev.elections.cikrf.Materialize -s <snapshot> -p <dir>
+java -Dhttp.agent="CIKRF Spider (Java); please report abuse to IP owner;" -cp cikrf-spider.jar net.shipilev.elections.cikrf.Daemon \
+    -E moscow="$URL1" \
+    -E mo="$URL2" \
+    -D data -S 600
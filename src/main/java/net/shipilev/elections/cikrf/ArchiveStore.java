@@ -0,0 +1,350 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package net.shipilev.elections.cikrf;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileLock;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content-addressed page store, shared by many snapshots.
+ *
+ * Page bodies are kept once per distinct content in the archive segments, keyed by SHA-1.
+ * Each snapshot is just a manifest in its page dir, which maps URLs to content hashes,
+ * so the unchanged pages cost only a manifest line. The manifest copy is also kept in
+ * the archive, so any snapshot can be materialized back from the archive alone.
+ *
+ * Only one process may write into the archive at a time.
+ */
+public class ArchiveStore extends PageStore {
+
+    public static final String MANIFEST_NAME = "manifest.txt";
+    public static final String BLOB_INDEX_NAME = "blobs.idx";
+    public static final String SNAPSHOTS_DIR = "snapshots";
+    private static final String LOCK_NAME = "lock";
+    private static final String HEADER = "# archive ";
+
+    private final File archive;
+    private final File manifestFile;
+    private final String snapshotName;
+
+    private final Map<String, Segments.Location> blobs;
+    private final Map<String, Record> records;
+    private final Segments segments;
+
+    private Writer blobIndex;
+    private Writer manifest;
+    private RandomAccessFile lockFile;
+    private FileLock lock;
+    private boolean modified;
+
+    public static boolean exists(String dir) {
+        return new File(dir, MANIFEST_NAME).exists();
+    }
+
+    /**
+     * Opens the snapshot in the page dir, finding the archive from the manifest header.
+     */
+    public static ArchiveStore open(String dir) throws IOException {
+        return openManifest(new File(dir, MANIFEST_NAME), null);
+    }
+
+    /**
+     * Opens the snapshot manifest for reading.
+     * @param file manifest file
+     * @param archiveDir archive dir; if null, taken from the manifest header
+     */
+    public static ArchiveStore openManifest(File file, String archiveDir) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String header = reader.readLine();
+            if (header == null || !header.startsWith(HEADER)) {
+                throw new IOException("Not a snapshot manifest: " + file);
+            }
+            String archive = (archiveDir != null) ? archiveDir : header.substring(HEADER.length());
+            return new ArchiveStore(new File(archive), file, file.getName());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @param archiveDir archive dir
+     * @param dir snapshot page dir, holding the manifest
+     */
+    public ArchiveStore(String archiveDir, String dir) throws IOException {
+        this(new File(archiveDir), new File(dir, MANIFEST_NAME), new File(dir).getAbsoluteFile().getName());
+    }
+
+    /**
+     * @param archive archive dir
+     * @param manifestFile snapshot manifest
+     * @param snapshotName snapshot name in the archive
+     */
+    public ArchiveStore(File archive, File manifestFile, String snapshotName) throws IOException {
+        this.archive = archive.getAbsoluteFile();
+        this.manifestFile = manifestFile;
+        this.snapshotName = snapshotName;
+        this.blobs = new HashMap<String, Segments.Location>();
+        this.records = new LinkedHashMap<String, Record>();
+
+        this.archive.mkdirs();
+        if (manifestFile.getParentFile() != null) {
+            manifestFile.getParentFile().mkdirs();
+        }
+
+        int lastSegment = 0;
+        File blobFile = new File(this.archive, BLOB_INDEX_NAME);
+        if (blobFile.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(blobFile), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length != 5) {
+                        // torn write at the crash, skip
+                        continue;
+                    }
+                    Segments.Location loc = Segments.Location.parse(fields[1], fields[2], fields[3], fields[4]);
+                    blobs.put(fields[0], loc);
+                    lastSegment = Math.max(lastSegment, loc.getSegment());
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        this.segments = new Segments(this.archive, lastSegment);
+
+        if (manifestFile.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (line.startsWith("#") || fields.length != 4) {
+                        continue;
+                    }
+                    String url = fields[3];
+                    if ("P".equals(fields[0])) {
+                        records.remove(url);
+                        records.put(url, new Record(Level.valueOf(fields[1]), url, fields[2]));
+                    } else if ("R".equals(fields[0])) {
+                        records.remove(url);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    private void ensureWritable() throws IOException {
+        if (lock == null) {
+            lockFile = new RandomAccessFile(new File(archive, LOCK_NAME), "rw");
+            lock = lockFile.getChannel().tryLock();
+            if (lock == null) {
+                lockFile.close();
+                lockFile = null;
+                throw new IOException("Archive is locked by another process: " + archive);
+            }
+        }
+
+        if (blobIndex == null) {
+            blobIndex = new OutputStreamWriter(new FileOutputStream(new File(archive, BLOB_INDEX_NAME), true), "UTF-8");
+        }
+
+        if (manifest == null) {
+            boolean fresh = !manifestFile.exists() || manifestFile.length() == 0;
+            manifest = new OutputStreamWriter(new FileOutputStream(manifestFile, true), "UTF-8");
+            if (fresh) {
+                manifest.write(HEADER + archive.getPath() + "\n");
+            }
+        }
+    }
+
+    @Override
+    public void put(Level level, String url, byte[] body) throws IOException {
+        /**
+         * Хэш и сжатие считаем вне блокировки: страницы пишутся из нескольких потоков.
+         * Сжимаем, только если такого содержимого ещё нет в архиве.
+         */
+        String hash = Hashing.sha1().hashBytes(body).toString();
+        if (!hasBlob(hash)) {
+            addBlob(hash, Segments.compress(body), body.length);
+        }
+        putRecord(level, url, hash);
+    }
+
+    private synchronized boolean hasBlob(String hash) throws IOException {
+        ensureWritable();
+        return blobs.containsKey(hash);
+    }
+
+    private synchronized void addBlob(String hash, byte[] compressed, int rawLength) throws IOException {
+        if (!blobs.containsKey(hash)) {
+            Segments.Location loc = segments.appendCompressed(compressed, rawLength);
+            blobIndex.write(hash + "\t" + loc + "\n");
+            blobIndex.flush();
+            blobs.put(hash, loc);
+        }
+    }
+
+    private synchronized void putRecord(Level level, String url, String hash) throws IOException {
+        manifest.write("P\t" + level.name() + "\t" + hash + "\t" + url + "\n");
+        manifest.flush();
+        modified = true;
+
+        records.remove(url);
+        records.put(url, new Record(level, url, hash));
+    }
+
+    @Override
+    public synchronized boolean contains(Level level, String url) {
+        Record r = records.get(url);
+        return r != null && r.level == level;
+    }
+
+    @Override
+    public synchronized byte[] get(Level level, String url) throws IOException {
+        Record r = records.get(url);
+        if (r == null || r.level != level) {
+            return null;
+        }
+        return readBlob(r);
+    }
+
+    @Override
+    public synchronized void remove(Level level, String url) throws IOException {
+        if (records.remove(url) != null) {
+            ensureWritable();
+            manifest.write("R\t" + level.name() + "\t-\t" + url + "\n");
+            manifest.flush();
+            modified = true;
+        }
+    }
+
+    @Override
+    public synchronized List<String> list(Level level) {
+        List<String> result = new ArrayList<String>();
+        for (Record r : records.values()) {
+            if (r.level == level) {
+                result.add(r.url);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public byte[] read(String name) throws IOException {
+        Segments.Location loc;
+        synchronized (this) {
+            Record r = records.get(name);
+            if (r == null) {
+                throw new IOException("No page in snapshot: " + name);
+            }
+            loc = blobLocation(r);
+        }
+        return segments.read(loc);
+    }
+
+    private byte[] readBlob(Record r) throws IOException {
+        return segments.read(blobLocation(r));
+    }
+
+    private Segments.Location blobLocation(Record r) throws IOException {
+        Segments.Location loc = blobs.get(r.hash);
+        if (loc == null) {
+            throw new IOException("No blob " + r.hash + " in archive for " + r.url);
+        }
+        return loc;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (blobIndex != null) {
+                blobIndex.close();
+                blobIndex = null;
+            }
+            if (manifest != null) {
+                manifest.close();
+                manifest = null;
+            }
+            segments.close();
+
+            if (modified) {
+                Files.copy(manifestFile, newSnapshotFile());
+                modified = false;
+            }
+        } finally {
+            if (lock != null) {
+                lock.release();
+                lockFile.close();
+                lock = null;
+                lockFile = null;
+            }
+        }
+    }
+
+    /**
+     * Snapshot copies are named by page dir. If the page dir was reused by the next run,
+     * the time of the run is added, so the previous snapshot is not overwritten.
+     */
+    private File newSnapshotFile() {
+        File snapshots = new File(archive, SNAPSHOTS_DIR);
+        snapshots.mkdirs();
+
+        File file = new File(snapshots, snapshotName + ".txt");
+        if (file.exists()) {
+            String base = snapshotName + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+            file = new File(snapshots, base + ".txt");
+            for (int seq = 1; file.exists(); seq++) {
+                file = new File(snapshots, base + "-" + seq + ".txt");
+            }
+        }
+        return file;
+    }
+
+    private static class Record {
+        private final Level level;
+        private final String url;
+        private final String hash;
+
+        private Record(Level level, String url, String hash) {
+            this.level = level;
+            this.url = url;
+            this.hash = hash;
+        }
+    }
+
+}
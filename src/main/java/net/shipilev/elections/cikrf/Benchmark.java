@@ -0,0 +1,137 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package net.shipilev.elections.cikrf;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs spider against local simulator, and reports the throughput and latencies.
+ * Lets to measure concurrency and rate limiting changes without touching the real CIK site.
+ *
+ * Usage: Benchmark [simulator options] -- [spider options]
+ * Spider is pointed to simulator, and downloads into the temporary dir, unless -p is given.
+ */
+public class Benchmark {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<String> simArgs = new ArrayList<String>();
+        List<String> spiderArgs = new ArrayList<String>();
+
+        int split = Arrays.asList(args).indexOf("--");
+        if (split < 0) {
+            simArgs.addAll(Arrays.asList(args));
+        } else {
+            simArgs.addAll(Arrays.asList(args).subList(0, split));
+            spiderArgs.addAll(Arrays.asList(args).subList(split + 1, args.length));
+        }
+
+        if (!simArgs.contains("-P")) {
+            simArgs.add("-P");
+            simArgs.add("0");
+        }
+
+        Simulator sim = Simulator.fromArgs(simArgs.toArray(new String[simArgs.size()]));
+        sim.start();
+
+        File tmpDir = null;
+        if (!spiderArgs.contains("-p")) {
+            tmpDir = Files.createTempDir();
+            spiderArgs.add("-p");
+            spiderArgs.add(tmpDir.getAbsolutePath());
+        }
+        spiderArgs.add("-r");
+        spiderArgs.add(sim.getRootURL());
+
+        long start = System.nanoTime();
+        Spider.main(spiderArgs.toArray(new String[spiderArgs.size()]));
+        long time = System.nanoTime() - start;
+
+        sim.stop();
+
+        report(new PrintWriter(System.out), sim, time);
+
+        if (tmpDir != null) {
+            delete(tmpDir);
+        }
+    }
+
+    private static void report(PrintWriter pw, Simulator sim, long time) {
+        Metrics metrics = Shared.metrics;
+        double seconds = time / 1e9;
+
+        long pages = 0;
+        for (Level level : Level.values()) {
+            pages += metrics.forLevel(level).getPages();
+        }
+
+        pw.println();
+        pw.println("**** Benchmark results:");
+        pw.printf("%15d : pages downloaded (of %d in the tree)\n", pages, sim.getPageCount());
+        pw.printf("%15.1f : seconds\n", seconds);
+        pw.printf("%15.1f : pages/sec\n", pages / seconds);
+        pw.println();
+
+        pw.println("**** Page latency, msecs (from submit to arrival, retries included):");
+        pw.printf("%10s %10s %10s %10s\n", "level", "p50", "p99", "max");
+        for (Level level : Level.values()) {
+            LatencyHistogram h = metrics.forLevel(level).getLatency();
+            pw.printf("%10s %10d %10d %10d\n", level.getPrefix(), h.percentileMillis(0.5), h.percentileMillis(0.99), h.getMaxMillis());
+        }
+        pw.println();
+
+        pw.println("**** Requests, per host (latency in msecs):");
+        pw.printf("%20s %10s %10s %10s %10s %10s %10s %10s\n", "host", "requests", "errors", "retries", "keys", "p50", "p99", "max");
+        for (Map.Entry<String, Metrics.HostStats> e : metrics.getHosts().entrySet()) {
+            Metrics.HostStats s = e.getValue();
+            LatencyHistogram h = s.getLatency();
+            pw.printf("%20s %10d %10d %10d %10d %10d %10d %10d\n", e.getKey(), s.getRequests(), s.getErrors(), s.getRetries(), s.getHandshakes(),
+                    h.percentileMillis(0.5), h.percentileMillis(0.99), h.getMaxMillis());
+        }
+        pw.println();
+
+        pw.println("**** Simulator:");
+        pw.printf("%15d : requests\n", sim.getRequests());
+        pw.printf("%15d : injected errors\n", sim.getErrors());
+        pw.printf("%15d : throttled requests\n", sim.getThrottled());
+        pw.printf("%15d : key handshakes\n", sim.getHandshakes());
+        pw.println();
+
+        if (pages < sim.getPageCount()) {
+            pw.println("WARNING: not all pages were downloaded, see spider log.");
+        }
+        pw.flush();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
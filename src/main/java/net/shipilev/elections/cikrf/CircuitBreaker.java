@@ -0,0 +1,103 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package net.shipilev.elections.cikrf;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker for a single host.
+ *
+ * After several consecutive failures the circuit opens, and no requests go to the host
+ * until the cool-down passes. Then one probe request is let through: its success closes
+ * the circuit, its failure opens it again.
+ */
+public class CircuitBreaker {
+
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long COOL_DOWN = TimeUnit.SECONDS.toNanos(30);
+
+    private enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN,
+    }
+
+    private final String host;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openUntil;
+    private Thread probe;
+
+    public CircuitBreaker(String host) {
+        this.host = host;
+    }
+
+    /**
+     * Asks for permission to make a request.
+     * @return 0, if request is allowed; otherwise, nanoseconds to wait before asking again
+     */
+    public synchronized long allow() {
+        switch (state) {
+            case CLOSED:
+                return 0;
+            case OPEN:
+                long now = System.nanoTime();
+                if (now - openUntil >= 0) {
+                    state = State.HALF_OPEN;
+                    probe = Thread.currentThread();
+                    return 0;
+                }
+                return openUntil - now;
+            case HALF_OPEN:
+                // probe is in flight, wait for its outcome
+                return TimeUnit.SECONDS.toNanos(1);
+            default:
+                throw new IllegalStateException("Unknown state: " + state);
+        }
+    }
+
+    public synchronized void success() {
+        state = State.CLOSED;
+        failures = 0;
+        probe = null;
+    }
+
+    /**
+     * Reports the request which ended with neither success nor failure, e.g. interrupted.
+     * If it was the probe, the next request becomes the probe.
+     */
+    public synchronized void cancel() {
+        if (state == State.HALF_OPEN && probe == Thread.currentThread()) {
+            state = State.OPEN;
+            openUntil = System.nanoTime();
+            probe = null;
+        }
+    }
+
+    public synchronized void failure() {
+        failures++;
+        if (state == State.HALF_OPEN || failures >= FAILURE_THRESHOLD) {
+            if (state != State.OPEN) {
+                System.err.println("Too many errors from " + host + ", pausing requests for " + TimeUnit.NANOSECONDS.toSeconds(COOL_DOWN) + " seconds");
+            }
+            state = State.OPEN;
+            openUntil = System.nanoTime() + COOL_DOWN;
+            probe = null;
+        }
+    }
+
+}
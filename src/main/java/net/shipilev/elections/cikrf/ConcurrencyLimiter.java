@@ -0,0 +1,196 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package net.shipilev.elections.cikrf;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive limit for in-flight requests to each host (AIMD).
+ *
+ * The limit grows by one request per round trip while the host answers fast, and
+ * is cut multiplicatively on overload errors and on latency rising well above the no-load latency.
+ * Client errors, like 404, do not tell anything about the host load, and leave the limit as is.
+ * The limit always stays within the configured bounds.
+ */
+public class ConcurrencyLimiter {
+
+    /**
+     * Latency over no-load latency which is treated as the server overload.
+     */
+    private static final double TOLERANCE = 2.0;
+
+    /**
+     * Multiplicative decrease factor.
+     */
+    private static final double BACKOFF = 0.75;
+
+    /**
+     * Number of samples after which the no-load latency estimate may drift up.
+     */
+    private static final int WINDOW = 100;
+
+    /**
+     * Part of the gap between the window minimum and the no-load latency the estimate drifts up by, per window.
+     */
+    private static final double DRIFT = 0.05;
+
+    private final int min;
+    private final int max;
+    private final ConcurrentMap<String, HostLimit> hosts;
+
+    public ConcurrencyLimiter(int min, int max) {
+        this.max = Math.max(1, max);
+        this.min = Math.max(1, Math.min(min, this.max));
+        this.hosts = new ConcurrentHashMap<String, HostLimit>();
+    }
+
+    private HostLimit forUrl(String url) {
+        String host = RateLimiter.hostOf(url);
+        HostLimit limit = hosts.get(host);
+        if (limit == null) {
+            HostLimit newLimit = new HostLimit(min, max);
+            limit = hosts.putIfAbsent(host, newLimit);
+            if (limit == null) {
+                limit = newLimit;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Blocks until the request to given URL fits into the host limit.
+     */
+    public void acquire(String url) throws InterruptedException {
+        forUrl(url).acquire();
+    }
+
+    /**
+     * Reports the request completion.
+     * @param url request URL
+     * @param latencyNanos request latency
+     * @param ok false, if request had failed
+     * @param overload true, if request had failed because the host is overloaded: server errors, throttling, timeouts
+     */
+    public void release(String url, long latencyNanos, boolean ok, boolean overload) {
+        forUrl(url).release(latencyNanos, ok, overload);
+    }
+
+    /**
+     * @return current limit for the host
+     */
+    public double getLimit(String host) {
+        HostLimit limit = hosts.get(host);
+        return (limit == null) ? min : limit.getLimit();
+    }
+
+    /**
+     * Uses explicit lock rather than monitor: waiting on the monitor pins the virtual thread to its carrier.
+     */
+    private static class HostLimit {
+        private final int min;
+        private final int max;
+        private final Lock lock = new ReentrantLock();
+        private final Condition available = lock.newCondition();
+
+        private double limit;
+        private int inFlight;
+
+        private long noLoadLatency;
+        private long windowMin;
+        private int windowSamples;
+        private long lastDecrease;
+
+        public HostLimit(int min, int max) {
+            this.min = min;
+            this.max = max;
+            this.limit = min;
+            this.windowMin = Long.MAX_VALUE;
+        }
+
+        public double getLimit() {
+            lock.lock();
+            try {
+                return limit;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void acquire() throws InterruptedException {
+            lock.lock();
+            try {
+                while (inFlight >= (int) limit) {
+                    available.await();
+                }
+                inFlight++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void release(long latency, boolean ok, boolean overload) {
+            lock.lock();
+            try {
+                doRelease(latency, ok, overload);
+                available.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void doRelease(long latency, boolean ok, boolean overload) {
+            boolean saturated = inFlight >= (int) limit;
+            inFlight--;
+
+            if (ok) {
+                /**
+                 * Под постоянной нагрузкой минимум окна — это уже задержка под нагрузкой:
+                 * если брать его за базу, сигнал о перегрузке пропадает. Поэтому база —
+                 * долговременный минимум, который лишь медленно подтягивается вверх,
+                 * если хост стал медленнее насовсем.
+                 */
+                if (noLoadLatency == 0 || latency < noLoadLatency) {
+                    noLoadLatency = latency;
+                }
+                windowMin = Math.min(windowMin, latency);
+                if (++windowSamples >= WINDOW) {
+                    noLoadLatency += (long) ((windowMin - noLoadLatency) * DRIFT);
+                    windowMin = Long.MAX_VALUE;
+                    windowSamples = 0;
+                }
+            }
+
+            if (overload || (ok && latency > noLoadLatency * TOLERANCE)) {
+                /**
+                 * Режем не чаще раза за round trip: ответы на уже отправленные запросы
+                 * ещё ничего не знают о новом пределе.
+                 */
+                long now = System.nanoTime();
+                if (now - lastDecrease > latency) {
+                    limit = Math.max(min, limit * BACKOFF);
+                    lastDecrease = now;
+                }
+            } else if (ok && saturated) {
+                limit = Math.min(max, limit + 1.0 / limit);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,283 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package net.shipilev.elections.cikrf;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Long-running crawler: watches several elections, crawling them on schedule.
+ * Elections are crawled concurrently, sharing the network engine and per-host limits;
+ * pages are parsed as they arrive, and only the archive snapshot and CSV tarball are left.
+ *
+ * Layout of data dir, for each election:
+ *   name/archive/                       page archive, snapshots are in archive/snapshots/
+ *   name/subtrees.txt                   subtree sizes from the last crawl
+ *   name/metrics.json, metrics.prom     progress and metrics of the current or last crawl
+ *   name/csv/cikrf-csv-name-DATE.tar.gz parsed CSVs
+ */
+public class Daemon {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Shared.init(args);
+
+        List<Election> elections = new ArrayList<Election>();
+        for (String spec : Shared.elections) {
+            int eq = spec.indexOf('=');
+            if (eq <= 0) {
+                System.err.println("Election should be given as name=URL: " + spec);
+                System.exit(1);
+            }
+            elections.add(new Election(spec.substring(0, eq), spec.substring(eq + 1)));
+        }
+
+        if (elections.isEmpty()) {
+            System.err.println("No elections to watch, add them with -E");
+            System.exit(1);
+        }
+
+        new Daemon(new File(Shared.dataDir), elections, Shared.period).run();
+    }
+
+    /**
+     * Modification time for tarball entries, so that the same CSVs give the same tarball.
+     */
+    private static final long TAR_MTIME = 1378598400L;
+
+    private final File dataDir;
+    private final List<Election> elections;
+    private final long periodNanos;
+
+    public Daemon(File dataDir, List<Election> elections, int periodSeconds) {
+        this.dataDir = dataDir;
+        this.elections = elections;
+        this.periodNanos = TimeUnit.SECONDS.toNanos(periodSeconds);
+    }
+
+    public void run() throws IOException, InterruptedException {
+        dataDir.mkdirs();
+
+        /**
+         * Статистика по хостам общая для всех выборов, по уровням — у каждого обхода своя.
+         */
+        Shared.metrics.startExport(dataDir, Shared.metricsPeriod);
+
+        ExecutorService crawlers = Executors.newFixedThreadPool(elections.size(),
+                new ThreadFactoryBuilder().setNameFormat("election-%d").build());
+
+        while (true) {
+            long start = System.nanoTime();
+            final String date = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+
+            List<Future<?>> cycles = new ArrayList<Future<?>>();
+            for (final Election e : elections) {
+                cycles.add(crawlers.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        crawl(e, date);
+                        return null;
+                    }
+                }));
+            }
+
+            for (int i = 0; i < cycles.size(); i++) {
+                try {
+                    cycles.get(i).get();
+                } catch (ExecutionException e) {
+                    System.err.println("Crawl of " + elections.get(i).getName() + " had failed: " + e.getCause());
+                }
+            }
+
+            long sleep = periodNanos - (System.nanoTime() - start);
+            if (sleep > 0) {
+                System.err.println("Sleeping for " + TimeUnit.NANOSECONDS.toSeconds(sleep) + " seconds");
+                TimeUnit.NANOSECONDS.sleep(sleep);
+            }
+        }
+    }
+
+    /**
+     * Crawls one election, and leaves the snapshot in the archive and CSVs in the tarball.
+     */
+    private void crawl(Election election, String date) throws IOException, InterruptedException {
+        String name = election.getName();
+
+        File home = new File(dataDir, name);
+        File archive = new File(home, "archive");
+        File csv = new File(home, "csv");
+        csv.mkdirs();
+
+        File pageDir = new File(home, "cikrf-web-" + name + "-" + date);
+        File resultsDir = new File(home, "cikrf-csv-" + name + "-" + date);
+
+        /**
+         * Каталоги обхода датированы и повторно не нужны: удаляем их, даже если обход упал.
+         * Метрики пишем в каталог выборов, чтобы они пережили уборку.
+         */
+        try {
+            Parser parser = new Parser(resultsDir.getPath());
+            Spider spider = new Spider(election.getRootURL(), pageDir.getPath(), archive.getPath(),
+                    new File(home, SubtreeSizes.FILE_NAME).getPath(), new Metrics(Shared.wideLimit), home.getPath(), parser);
+            if (!spider.downloadAll()) {
+                System.err.println("Not all pages of " + name + " were downloaded, writing what we have");
+            }
+
+            parser.finish(null);
+
+            File tarball = new File(csv, resultsDir.getName() + ".tar.gz");
+            File tmp = new File(csv, tarball.getName() + ".tmp");
+            tar(resultsDir, tmp);
+            if (!tmp.renameTo(tarball)) {
+                throw new IOException("Cannot rename " + tmp + " to " + tarball);
+            }
+            System.err.println("Snapshot of " + name + " is written to " + tarball);
+        } finally {
+            delete(pageDir);
+            delete(resultsDir);
+        }
+    }
+
+    /**
+     * Writes the files of the dir into gzipped tarball, same as "tar -c -z -C dir ." would.
+     */
+    private static void tar(File dir, File tarball) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list " + dir);
+        }
+        Arrays.sort(files);
+
+        OutputStream os = new GZIPOutputStream(new FileOutputStream(tarball));
+        try {
+            byte[] buf = new byte[65536];
+            for (File file : files) {
+                if (!file.isFile()) {
+                    continue;
+                }
+
+                os.write(tarHeader("./" + file.getName(), file.length()));
+
+                InputStream is = new FileInputStream(file);
+                try {
+                    int read;
+                    while ((read = is.read(buf)) > 0) {
+                        os.write(buf, 0, read);
+                    }
+                } finally {
+                    is.close();
+                }
+
+                int tail = (int) (file.length() % 512);
+                if (tail != 0) {
+                    os.write(new byte[512 - tail]);
+                }
+            }
+            os.write(new byte[1024]);
+        } finally {
+            os.close();
+        }
+    }
+
+    private static byte[] tarHeader(String name, long size) throws IOException {
+        byte[] nameBytes = name.getBytes("UTF-8");
+        if (nameBytes.length > 100) {
+            throw new IOException("File name is too long for tar: " + name);
+        }
+
+        byte[] header = new byte[512];
+        System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+        putOctal(header, 100, 8, 0644);
+        putOctal(header, 108, 8, 0);
+        putOctal(header, 116, 8, 0);
+        putOctal(header, 124, 12, size);
+        putOctal(header, 136, 12, TAR_MTIME);
+        header[156] = '0';
+        System.arraycopy("ustar\u000000".getBytes("US-ASCII"), 0, header, 257, 8);
+
+        /**
+         * Контрольная сумма считается с пробелами на месте самой суммы.
+         */
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long sum = 0;
+        for (byte b : header) {
+            sum += b & 0xFF;
+        }
+        putOctal(header, 148, 7, sum);
+
+        return header;
+    }
+
+    /**
+     * Puts zero-padded octal number, terminated with NUL, into the field.
+     */
+    private static void putOctal(byte[] header, int offset, int length, long value) {
+        String s = Long.toOctalString(value);
+        while (s.length() < length - 1) {
+            s = "0" + s;
+        }
+        for (int i = 0; i < length - 1; i++) {
+            header[offset + i] = (byte) s.charAt(i);
+        }
+        header[offset + length - 1] = 0;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    public static class Election {
+        private final String name;
+        private final String rootURL;
+
+        public Election(String name, String rootURL) {
+            this.name = name;
+            this.rootURL = rootURL;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getRootURL() {
+            return rootURL;
+        }
+    }
+
+}
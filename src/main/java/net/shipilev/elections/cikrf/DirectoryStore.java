@@ -0,0 +1,102 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package net.shipilev.elections.cikrf;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Classic page dir layout: one file per page.
+ */
+public class DirectoryStore extends PageStore {
+
+    private final File dir;
+
+    public DirectoryStore(String dir) {
+        this.dir = new File(dir);
+        this.dir.mkdirs();
+    }
+
+    /**
+     * Page files are named after their URLs, so that the same page gets the same file in every run.
+     */
+    private static String fileName(Level level, String url) {
+        if (level == Level.ROOT) {
+            return "root.data.html";
+        } else {
+            return level.getPrefix() + "-" + Hashing.md5().hashString(url, Charsets.UTF_8) + ".data.html";
+        }
+    }
+
+    @Override
+    public void put(Level level, String url, byte[] body) throws IOException {
+        Files.write(body, new File(dir, fileName(level, url)));
+    }
+
+    @Override
+    public boolean contains(Level level, String url) {
+        return new File(dir, fileName(level, url)).exists();
+    }
+
+    @Override
+    public byte[] get(Level level, String url) throws IOException {
+        File file = new File(dir, fileName(level, url));
+        return file.exists() ? Files.toByteArray(file) : null;
+    }
+
+    @Override
+    public void remove(Level level, String url) {
+        new File(dir, fileName(level, url)).delete();
+    }
+
+    @Override
+    public List<String> list(Level level) {
+        final String input = (level == Level.ROOT) ? level.getPrefix() : level.getPrefix() + "-";
+
+        String[] files = dir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.contains(input);
+            }
+        });
+
+        if (files == null) {
+            return new ArrayList<String>();
+        }
+
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    @Override
+    public byte[] read(String name) throws IOException {
+        return Files.toByteArray(new File(dir, name));
+    }
+
+    @Override
+    public void close() {
+        // nothing to do
+    }
+
+}
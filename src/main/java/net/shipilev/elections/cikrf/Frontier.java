@@ -0,0 +1,351 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package net.shipilev.elections.cikrf;
+
+import com.google.common.base.Joiner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Crawl frontier, backed by the append-only journal in page dir.
+ *
+ * Every discovered URL is journaled before it is scheduled, and every downloaded page is journaled
+ * after its links are discovered. If spider dies in the middle, the next run in the same page dir
+ * replays the journal and picks up the pages which were discovered, but not completed.
+ *
+ * URLs are deduplicated by their canonical form. Pending URLs are served largest expected subtree first,
+ * so that the big regions start early and do not become the long pole of the crawl. Pending URLs are
+ * held in memory up to a limit; the leaf pages over the limit are spilled to disk.
+ *
+ * Not thread-safe.
+ */
+public class Frontier {
+
+    public static final String JOURNAL_NAME = "frontier.journal";
+    public static final String SPILL_NAME = "frontier.spill";
+
+    private static final int MEMORY_LIMIT = 10000;
+
+    private final File journalFile;
+    private final File spillFile;
+    private final Writer journal;
+
+    private final Set<String> seen;
+    private final Set<String> completed;
+    private final Map<Level, Integer> discoveredCount;
+    private final Map<Level, Integer> completedCount;
+
+    private final SubtreeSizes sizes;
+    private final PriorityQueue<Pending> pending;
+    private long sequence;
+    private DataOutputStream spillOut;
+    private DataInputStream spillIn;
+    private int spilled;
+
+    private final boolean resumed;
+    private final List<String> resumedCompleted;
+
+    /**
+     * @param dir page dir
+     * @param sizes subtree size estimates, used for prioritizing
+     */
+    public Frontier(String dir, SubtreeSizes sizes) throws IOException {
+        this.sizes = sizes;
+        this.journalFile = new File(dir, JOURNAL_NAME);
+        this.spillFile = new File(dir, SPILL_NAME);
+        this.seen = new HashSet<String>();
+        this.completed = new HashSet<String>();
+        this.discoveredCount = new EnumMap<Level, Integer>(Level.class);
+        this.completedCount = new EnumMap<Level, Integer>(Level.class);
+        this.pending = new PriorityQueue<Pending>();
+        this.resumedCompleted = new ArrayList<String>();
+
+        for (Level level : Level.values()) {
+            discoveredCount.put(level, 0);
+            completedCount.put(level, 0);
+        }
+
+        spillFile.delete();
+
+        this.resumed = journalFile.exists() && journalFile.length() > 0;
+        if (resumed) {
+            replay();
+        }
+
+        this.journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), "UTF-8"));
+    }
+
+    private void replay() throws IOException {
+        Map<String, Page.Link> discovered = new LinkedHashMap<String, Page.Link>();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 3) {
+                    // torn write at the crash, skip
+                    continue;
+                }
+
+                Level level = Level.valueOf(fields[1]);
+                String url = fields[2];
+                String key = canonicalize(url);
+
+                if ("D".equals(fields[0])) {
+                    if (!discovered.containsKey(key)) {
+                        discovered.put(key, new Page.Link(url, level));
+                        discoveredCount.put(level, discoveredCount.get(level) + 1);
+                    }
+                } else if ("C".equals(fields[0])) {
+                    if (completed.add(key)) {
+                        completedCount.put(level, completedCount.get(level) + 1);
+                        resumedCompleted.add(url);
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        seen.addAll(discovered.keySet());
+        for (Map.Entry<String, Page.Link> e : discovered.entrySet()) {
+            if (!completed.contains(e.getKey())) {
+                enqueue(e.getValue(), e.getKey());
+            }
+        }
+    }
+
+    /**
+     * @return true, if frontier was restored from the journal of interrupted run
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * @return URLs of the pages completed by the interrupted run
+     */
+    public Collection<String> getResumedCompleted() {
+        return resumedCompleted;
+    }
+
+    /**
+     * Adds the URL to frontier, unless it was seen already.
+     * @return true, if URL was added
+     */
+    public boolean offer(String url, Level level) throws IOException {
+        return offer(url, level, null);
+    }
+
+    /**
+     * Adds the URL found on the page, unless it was seen already.
+     * @param parent the page URL was found on
+     * @return true, if URL was added
+     */
+    public boolean offer(String url, Level level, Page.Link parent) throws IOException {
+        String key = canonicalize(url);
+        if (!seen.add(key)) {
+            return false;
+        }
+
+        if (parent != null) {
+            sizes.discovered(canonicalize(parent.getUrl()), parent.getLevel(), key, level);
+        }
+
+        journal.write("D\t" + level.name() + "\t" + url + "\n");
+        discoveredCount.put(level, discoveredCount.get(level) + 1);
+        enqueue(new Page.Link(url, level), key);
+        return true;
+    }
+
+    /**
+     * @return next URL to download; null, if nothing is pending
+     */
+    public Page.Link poll() throws IOException {
+        if (pending.isEmpty() && spilled > 0) {
+            unspill();
+        }
+        Pending p = pending.poll();
+        return (p == null) ? null : p.link;
+    }
+
+    /**
+     * Marks the page as downloaded. The links discovered on the page should be offered before this call.
+     */
+    public void complete(String url, Level level) throws IOException {
+        if (completed.add(canonicalize(url))) {
+            completedCount.put(level, completedCount.get(level) + 1);
+            sizes.completed(level);
+        }
+        journal.write("C\t" + level.name() + "\t" + url + "\n");
+        journal.flush();
+    }
+
+    /**
+     * @return number of URLs waiting for download, both in memory and spilled on disk
+     */
+    public int getPending() {
+        return pending.size() + spilled;
+    }
+
+    public int getDiscovered(Level level) {
+        return discoveredCount.get(level);
+    }
+
+    public int getCompleted(Level level) {
+        return completedCount.get(level);
+    }
+
+    /**
+     * Closes the frontier, keeping the journal for the next run to resume.
+     */
+    public void close() throws IOException {
+        journal.close();
+        if (spillOut != null) {
+            spillOut.close();
+        }
+        if (spillIn != null) {
+            spillIn.close();
+        }
+        spillFile.delete();
+    }
+
+    /**
+     * Closes the frontier after complete crawl, removing the journal.
+     */
+    public void finish() throws IOException {
+        close();
+        journalFile.delete();
+    }
+
+    private void enqueue(Page.Link link, String key) throws IOException {
+        int size = sizes.estimate(key, link.getLevel());
+
+        /**
+         * На диск уходят только листья: страницы с поддеревьями должны оставаться в очереди с приоритетами.
+         */
+        if (size > 1 || (pending.size() < MEMORY_LIMIT && spilled == 0)) {
+            pending.add(new Pending(link, size, sequence++));
+        } else {
+            if (spillOut == null) {
+                spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+            }
+            spillOut.writeUTF(link.getLevel().name());
+            spillOut.writeUTF(link.getUrl());
+            spilled++;
+        }
+    }
+
+    private void unspill() throws IOException {
+        spillOut.flush();
+        if (spillIn == null) {
+            spillIn = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+        }
+        while (spilled > 0 && pending.size() < MEMORY_LIMIT) {
+            Level level = Level.valueOf(spillIn.readUTF());
+            String url = spillIn.readUTF();
+            pending.add(new Pending(new Page.Link(url, level), 1, sequence++));
+            spilled--;
+        }
+    }
+
+    /**
+     * Pending URL: larger subtrees go first, then the URLs discovered earlier.
+     */
+    private static class Pending implements Comparable<Pending> {
+        private final Page.Link link;
+        private final int size;
+        private final long sequence;
+
+        private Pending(Page.Link link, int size, long sequence) {
+            this.link = link;
+            this.size = size;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Pending o) {
+            if (size != o.size) {
+                return (size > o.size) ? -1 : 1;
+            }
+            if (sequence != o.sequence) {
+                return (sequence < o.sequence) ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Canonical form of URL, for deduplication purposes:
+     * lower-case scheme and host, no default port, no fragment, sorted non-empty query parameters.
+     */
+    public static String canonicalize(String url) {
+        URL u;
+        try {
+            u = new URL(url);
+        } catch (MalformedURLException e) {
+            return url;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(u.getProtocol().toLowerCase()).append("://").append(u.getHost().toLowerCase());
+        if (u.getPort() != -1 && u.getPort() != u.getDefaultPort()) {
+            sb.append(":").append(u.getPort());
+        }
+        sb.append(u.getPath());
+
+        String query = u.getQuery();
+        if (query != null) {
+            List<String> params = new ArrayList<String>(Arrays.asList(query.split("&")));
+            params.removeAll(Arrays.asList(""));
+            Collections.sort(params);
+            if (!params.isEmpty()) {
+                sb.append("?");
+                Joiner.on("&").appendTo(sb, params);
+            }
+        }
+
+        return sb.toString();
+    }
+
+}
@@ -2,9 +2,12 @@ package net.shipilev.elections.cikrf;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Geography implements Comparable<Geography> {
     private static final Set<String> STOP_WORDS = new HashSet<String>() {{
@@ -13,15 +16,62 @@ public class Geography implements Comparable<Geography> {
         add("сайт избирательной");
     }};
 
-    private final List<String> coords;
+    private final Geography parent;
+    private final String name;
+    private final int depth;
+    private final int id;
+    private final AtomicInteger ids;
+    private Map<String, Geography> children;
+
+    private Geography(Geography parent, String name, AtomicInteger ids) {
+        this.parent = parent;
+        this.name = name;
+        this.depth = (parent == null) ? 0 : parent.depth + 1;
+        this.ids = ids;
+        this.id = ids.getAndIncrement();
+    }
+
+    /**
+     * Geographies are interned in the trie: there is only one node for the given coordinates,
+     * so equality is identity, and hash is the node id.
+     *
+     * @return root of the new trie
+     */
+    public static Geography root() {
+        return new Geography(null, null, new AtomicInteger());
+    }
 
-    public Geography(Collection<String> c) {
-        this.coords = new ArrayList<String>();
+    /**
+     * @return node for given coordinates below this one, with stop coordinates skipped
+     */
+    public Geography path(Collection<String> c) {
+        Geography g = this;
         for (String s : c) {
             if (!stopCoord(s)) {
-                coords.add(s);
+                g = g.child(s);
             }
         }
+        return g;
+    }
+
+    public synchronized Geography child(String name) {
+        if (children == null) {
+            children = new HashMap<String, Geography>();
+        }
+        Geography c = children.get(name);
+        if (c == null) {
+            c = new Geography(this, name, ids);
+            children.put(name, c);
+        }
+        return c;
+    }
+
+    public Geography getParent() {
+        return parent;
+    }
+
+    public String getName() {
+        return name;
     }
 
     public static boolean stopCoord(String s) {
@@ -39,64 +89,74 @@ public class Geography implements Comparable<Geography> {
     }
 
     public String get(int index) {
-        if (index >= coords.size()) {
+        if (index >= depth) {
             return "";
-        } else {
-            return coords.get(index);
         }
+        Geography g = this;
+        while (g.depth > index + 1) {
+            g = g.parent;
+        }
+        return g.name;
     }
 
     public int size() {
-        return coords.size();
+        return depth;
     }
 
     @Override
     public boolean equals(Object o) {
-        if (this == o) {
-            return true;
-        }
-        if (o == null || getClass() != o.getClass()) {
-            return false;
-        }
-
-        Geography geography = (Geography) o;
-
-        if (coords != null ? !coords.equals(geography.coords) : geography.coords != null) {
-            return false;
-        }
-
-        return true;
+        return this == o;
     }
 
     @Override
     public int hashCode() {
-        int result = coords != null ? coords.hashCode() : 0;
-        return result;
+        return id;
     }
 
+    /**
+     * Compares coordinates lexicographically, missing coordinates are treated as empty strings.
+     */
     @Override
     public int compareTo(Geography o) {
-        for (int c = 0; c < Math.max(size(), o.size()); c++) {
-            int r = get(c).compareTo(o.get(c));
-            if (r != 0) {
-                return r;
+        if (this == o) {
+            return 0;
+        }
+
+        // level up the deeper one, remembering if it had anything non-empty below
+        Geography a = this;
+        Geography b = o;
+        int tail = 0;
+        while (a.depth > b.depth) {
+            if (!a.name.isEmpty()) {
+                tail = 1;
             }
+            a = a.parent;
+        }
+        while (b.depth > a.depth) {
+            if (!b.name.isEmpty()) {
+                tail = -1;
+            }
+            b = b.parent;
         }
-        return 0;
-    }
 
-    public Geography aid(String uikName) {
-        Geography c = new Geography(this.coords);
-        c.addCoord(uikName);
-        return c;
-    }
+        if (a == b) {
+            return tail;
+        }
 
-    private void addCoord(String uikName) {
-        coords.add(uikName);
+        // siblings below the common parent always have different names
+        while (a.parent != b.parent) {
+            a = a.parent;
+            b = b.parent;
+        }
+        return a.name.compareTo(b.name);
     }
 
     @Override
     public String toString() {
+        List<String> coords = new ArrayList<String>();
+        for (int c = 0; c < depth; c++) {
+            coords.add(get(c));
+        }
         return "Geography{" +
                 "coords=" + coords +
                 '}';
@@ -0,0 +1,522 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package net.shipilev.elections.cikrf;
+
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Fetches the pages from CIK site.
+ *
+ * Connections are kept alive and reused: the JDK keeps the idle connections for each host,
+ * as long as every response is read out completely. Requests are executed by the
+ * pool of network threads, and callers get notified on completion.
+ *
+ * Failed requests are retried with exponential backoff and jitter. Hosts failing
+ * consistently are given a pause by the per-host circuit breaker.
+ *
+ * On JDK 21+, every request can run on its own virtual thread instead: then the number of
+ * in-flight requests is bounded by the limiters only, not by the thread pool.
+ */
+public class HttpEngine {
+
+    private static final String CHARSET = "cp1251";
+
+    private final ExecutorService executor;
+    private final RateLimiter limiter;
+    private final ConcurrencyLimiter concurrency;
+    private final ConcurrentMap<String, ListenableFuture<Response>> inFlight;
+    private final SessionManager sessions;
+    private final RetryPolicy retry;
+    private final ConcurrentMap<String, CircuitBreaker> breakers;
+    private final ScheduledExecutorService retries;
+    private final Set<SettableFuture<Response>> waitingRetry;
+    private final Metrics metrics;
+
+    /**
+     * @param threads number of network threads, also the upper bound for in-flight requests to each host
+     * @param minConcurrency lower bound for in-flight requests to each host
+     * @param limiter request rate limiter
+     * @param retry retry policy for failed downloads
+     * @param metrics request statistics
+     * @param virtual true, if requests should run on virtual threads
+     */
+    public HttpEngine(int threads, int minConcurrency, RateLimiter limiter, RetryPolicy retry, Metrics metrics, boolean virtual) {
+        this.limiter = limiter;
+        this.retry = retry;
+        this.metrics = metrics;
+        this.breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+        this.concurrency = new ConcurrencyLimiter(minConcurrency, threads);
+        this.inFlight = new ConcurrentHashMap<String, ListenableFuture<Response>>();
+        this.sessions = new SessionManager();
+        this.waitingRetry = Collections.newSetFromMap(new ConcurrentHashMap<SettableFuture<Response>, Boolean>());
+
+        /**
+         * Keep-alive cache should hold the connection for every network thread.
+         */
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(Math.max(5, threads)));
+
+        ExecutorService virtualExecutor = virtual ? newVirtualThreadExecutor() : null;
+        if (virtualExecutor != null) {
+            this.executor = virtualExecutor;
+        } else {
+            if (virtual) {
+                System.err.println("Virtual threads are not available on this JVM (JDK 21+ is needed), using " + threads + " network threads");
+            }
+            this.executor = Executors.newFixedThreadPool(threads,
+                    new ThreadFactoryBuilder().setNameFormat("fetch-%d").setDaemon(true).build());
+        }
+        this.retries = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("retry-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Looked up reflectively: the code is compiled for older JDKs.
+     * @return executor starting new virtual thread for each task; null, if JVM has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Downloads the page asynchronously.
+     * Failed attempts are retried with backoff, as long as the retry policy allows.
+     * @param url page URL
+     * @param previous validators from the previous download, null if none
+     * @return future response, completed when the page is downloaded, or failed after the last attempt
+     */
+    public ListenableFuture<Response> downloadAsync(final String url, final ValidatorCache.Entry previous) {
+        /**
+         * Concurrent requests for the same URL share the same download.
+         */
+        ListenableFuture<Response> existing = inFlight.get(url);
+        if (existing != null) {
+            return existing;
+        }
+
+        final SettableFuture<Response> result = SettableFuture.create();
+
+        existing = inFlight.putIfAbsent(url, result);
+        if (existing != null) {
+            return existing;
+        }
+
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                inFlight.remove(url, result);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+
+        schedule(url, previous, result, 0, 0);
+        return result;
+    }
+
+    /**
+     * Downloads the page, waiting for all retries.
+     * @param url page URL
+     * @param previous validators from the previous download, null if none
+     * @return response; if page had not been modified since previous download, response has no body
+     * @throws IOException if all attempts had failed
+     */
+    public Response download(String url, ValidatorCache.Entry previous) throws IOException, InterruptedException {
+        try {
+            return downloadAsync(url, previous).get();
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            Throwables.propagateIfInstanceOf(e.getCause(), InterruptedException.class);
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * Stops the engine. Downloads waiting for the retry are failed right away.
+     */
+    public void shutdown() {
+        retries.shutdownNow();
+        executor.shutdown();
+        for (SettableFuture<Response> result : waitingRetry) {
+            result.setException(new IOException("Download engine is shut down"));
+        }
+    }
+
+    private void schedule(final String url, final ValidatorCache.Entry previous,
+                          final SettableFuture<Response> result, final int attempts, long delayNanos) {
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                attempt(url, previous, result, attempts);
+            }
+        };
+
+        try {
+            if (delayNanos > 0) {
+                waitingRetry.add(result);
+                retries.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        waitingRetry.remove(result);
+                        try {
+                            executor.execute(task);
+                        } catch (RejectedExecutionException e) {
+                            result.setException(e);
+                        }
+                    }
+                }, delayNanos, TimeUnit.NANOSECONDS);
+            } else {
+                executor.execute(task);
+            }
+        } catch (RejectedExecutionException e) {
+            waitingRetry.remove(result);
+            result.setException(e);
+        }
+    }
+
+    private void attempt(String url, ValidatorCache.Entry previous, SettableFuture<Response> result, int attempts) {
+        CircuitBreaker breaker = breakerFor(url);
+
+        long wait = breaker.allow();
+        if (wait > 0) {
+            /**
+             * Хост временно отключён: откладываем запрос, не тратя попытку.
+             */
+            metrics.forUrl(url).breakerWait();
+            schedule(url, previous, result, attempts, wait + retry.jitterNanos());
+            return;
+        }
+
+        boolean reported = false;
+        try {
+            Response response = downloadOnce(url, previous);
+            breaker.success();
+            reported = true;
+            result.set(response);
+        } catch (InterruptedException e) {
+            result.setException(e);
+        } catch (Exception e) {
+            if (retry.isTransient(e)) {
+                breaker.failure();
+            } else {
+                breaker.success();
+            }
+            reported = true;
+
+            int made = attempts + 1;
+            if (retry.shouldRetry(made, e)) {
+                long delay = retry.delayNanos(made, e);
+                metrics.forUrl(url).retry();
+                System.err.println("Error fetching " + url + ": " + e.getMessage() + ", retrying in " + TimeUnit.NANOSECONDS.toMillis(delay) + " ms");
+                schedule(url, previous, result, made, delay);
+            } else {
+                System.err.println("Error fetching " + url + ": " + e.getMessage() + ", giving up after " + made + " attempts");
+                result.setException(e);
+            }
+        } finally {
+            if (!reported) {
+                // не оставляем пробный запрос висеть, иначе хост так и будет ждать его исхода
+                breaker.cancel();
+            }
+        }
+    }
+
+    private CircuitBreaker breakerFor(String url) {
+        String host = RateLimiter.hostOf(url);
+        CircuitBreaker breaker = breakers.get(host);
+        if (breaker == null) {
+            breaker = new CircuitBreaker(host);
+            CircuitBreaker existing = breakers.putIfAbsent(host, breaker);
+            if (existing != null) {
+                breaker = existing;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * Makes a single download attempt, passing the "key" handshake if server asks for it.
+     */
+    private Response downloadOnce(String url, ValidatorCache.Entry previous) throws IOException, InterruptedException {
+        SessionManager.HostSession session = sessions.forUrl(url);
+        long generation = session.getGeneration();
+
+        Response response = fetch(url, previous);
+
+        if (!response.isNotModified()) {
+            Integer key = SessionManager.challengeKey(response.getBody());
+            if (key != null) {
+                /**
+                 * Если другой поток уже прошёл проверку, пока мы ждали, то куки уже есть: просто пробуем ещё раз.
+                 */
+                session.getLock().lock();
+                try {
+                    if (session.getGeneration() == generation) {
+                        sendPOST(url, "key=" + key);
+                        session.renewed();
+                        metrics.forUrl(url).handshake();
+                    }
+                } finally {
+                    session.getLock().unlock();
+                }
+                response = fetch(url, previous);
+
+                /**
+                 * Сессия могла уже кончиться снова: не отдаём страницу с ключом вместо данных.
+                 */
+                if (!response.isNotModified() && SessionManager.challengeKey(response.getBody()) != null) {
+                    throw new IOException("Server keeps asking for the key: " + url);
+                }
+            }
+        }
+
+        return response;
+    }
+
+    private Response fetch(String url, ValidatorCache.Entry previous) throws IOException, InterruptedException {
+        /**
+         * Сначала ждём разрешения по частоте, и только потом занимаем слот:
+         * иначе спящий в ожидании запрос выглядит для AIMD как запрос в полёте.
+         */
+        limiter.acquire(url);
+        concurrency.acquire(url);
+
+        HttpURLConnection hc = null;
+        boolean ok = false;
+        boolean overload = false;
+        boolean notModified = false;
+        long bytes = 0;
+        long start = System.nanoTime();
+        try {
+            hc = (HttpURLConnection) new URL(url).openConnection();
+            hc.setDoInput(true);
+            hc.setDoOutput(false);
+            hc.setRequestProperty("Accept-Encoding", "gzip, deflate");
+            hc.setRequestProperty("Pragma", "no-cache");
+
+            if (previous != null) {
+                if (previous.getETag() != null) {
+                    hc.setRequestProperty("If-None-Match", previous.getETag());
+                }
+                if (previous.getLastModified() != null) {
+                    hc.setRequestProperty("If-Modified-Since", previous.getLastModified());
+                }
+            }
+
+            int code = hc.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED && previous != null) {
+                readOut(hc.getInputStream());
+                ok = true;
+                notModified = true;
+                return new Response(null, previous.getETag(), previous.getLastModified());
+            }
+
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new StatusException(code, hc.getResponseMessage(), hc.getHeaderField("Retry-After"));
+            }
+
+            byte[] raw = readOut(hc.getInputStream());
+            bytes = raw.length;
+            byte[] body = decode(raw, hc.getHeaderField("Content-Encoding"));
+            ok = true;
+            return new Response(body, hc.getHeaderField("ETag"), hc.getHeaderField("Last-Modified"));
+        } catch (IOException e) {
+            overload = retry.isTransient(e);
+            if (hc != null) {
+                drainErrorStream(hc);
+            }
+            throw e;
+        } finally {
+            long latency = System.nanoTime() - start;
+            concurrency.release(url, latency, ok, overload);
+
+            Metrics.HostStats stats = metrics.forUrl(url);
+            stats.request(latency, bytes, ok, notModified);
+            stats.setConcurrency(concurrency.getLimit(RateLimiter.hostOf(url)));
+        }
+    }
+
+    private void sendPOST(String url, String body) throws InterruptedException {
+        HttpURLConnection hc = null;
+        try {
+            limiter.acquire(url);
+
+            hc = (HttpURLConnection) new URL(url).openConnection();
+            hc.setRequestMethod("POST");
+            hc.setDoInput(true);
+            hc.setDoOutput(true);
+
+            byte[] bytes = body.getBytes(CHARSET);
+            hc.setFixedLengthStreamingMode(bytes.length);
+            OutputStream os = hc.getOutputStream();
+            os.write(bytes);
+            os.close();
+
+            readOut(hc.getInputStream());
+        } catch (IOException e) {
+            System.err.println("IOException while sending POST: " + e.getMessage());
+            if (hc != null) {
+                drainErrorStream(hc);
+            }
+        }
+    }
+
+    /**
+     * Reads the stream to the end and closes it.
+     * Only fully read streams let the connection back into keep-alive cache.
+     */
+    private static byte[] readOut(InputStream stream) throws IOException {
+        if (stream == null) {
+            return new byte[0];
+        }
+        try {
+            return ByteStreams.toByteArray(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static void drainErrorStream(HttpURLConnection hc) {
+        try {
+            readOut(hc.getErrorStream());
+        } catch (IOException e) {
+            // do nothing
+        }
+    }
+
+    private static byte[] decode(byte[] body, String contentEncoding) throws IOException {
+        InputStream in;
+        if ("gzip".equals(contentEncoding)) {
+            in = new GZIPInputStream(new ByteArrayInputStream(body));
+        } else if ("deflate".equals(contentEncoding)) {
+            in = new InflaterInputStream(new ByteArrayInputStream(body));
+        } else {
+            return body;
+        }
+        return readOut(in);
+    }
+
+    /**
+     * Server had answered with unexpected HTTP status.
+     */
+    public static class StatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int code;
+        private final long retryAfterNanos;
+
+        public StatusException(int code, String message, String retryAfter) {
+            super(code + " " + message);
+            this.code = code;
+            this.retryAfterNanos = parseRetryAfter(retryAfter);
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        /**
+         * @return nanoseconds the server asked to wait before the next request, 0 if it did not ask
+         */
+        public long getRetryAfterNanos() {
+            return retryAfterNanos;
+        }
+
+        /**
+         * Retry-After is either the number of seconds, or HTTP date.
+         */
+        private static long parseRetryAfter(String value) {
+            if (value == null) {
+                return 0;
+            }
+            value = value.trim();
+            try {
+                return TimeUnit.SECONDS.toNanos(Math.max(0, Long.parseLong(value)));
+            } catch (NumberFormatException e) {
+                // not seconds, try the date
+            }
+            try {
+                SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+                long millis = format.parse(value).getTime() - System.currentTimeMillis();
+                return TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+            } catch (ParseException e) {
+                return 0;
+            }
+        }
+    }
+
+    public static class Response {
+        private final byte[] body;
+        private final String eTag;
+        private final String lastModified;
+
+        public Response(byte[] body, String eTag, String lastModified) {
+            this.body = body;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return true, if server confirmed the page had not changed since previous download
+         */
+        public boolean isNotModified() {
+            return body == null;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package net.shipilev.elections.cikrf;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with fixed buckets, safe to update from many threads.
+ * Percentiles are estimated with bucket precision: the upper bound of the bucket is reported.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Bucket upper bounds, milliseconds. The last bucket is unbounded.
+     */
+    private static final long[] BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 60000};
+
+    private final AtomicLongArray counts;
+    private final AtomicLong count;
+    private final AtomicLong sumMillis;
+    private final AtomicLong maxMillis;
+
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(BOUNDS.length + 1);
+        count = new AtomicLong();
+        sumMillis = new AtomicLong();
+        maxMillis = new AtomicLong();
+    }
+
+    public void record(long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+
+        int bucket = 0;
+        while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sumMillis.addAndGet(millis);
+
+        long max;
+        while ((max = maxMillis.get()) < millis && !maxMillis.compareAndSet(max, millis)) {
+            // retry
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSumMillis() {
+        return sumMillis.get();
+    }
+
+    public long getMaxMillis() {
+        return maxMillis.get();
+    }
+
+    /**
+     * @param fraction percentile, from 0 to 1
+     * @return estimated latency, milliseconds; 0, if nothing was recorded
+     */
+    public long percentileMillis(double fraction) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int b = 0; b < BOUNDS.length; b++) {
+            seen += counts.get(b);
+            if (seen >= rank) {
+                return Math.min(BOUNDS[b], getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+
+    /**
+     * @return number of buckets, including the unbounded one
+     */
+    public static int getBuckets() {
+        return BOUNDS.length + 1;
+    }
+
+    /**
+     * @return upper bound of the bucket, milliseconds; -1 for the unbounded bucket
+     */
+    public static long getBound(int bucket) {
+        return (bucket < BOUNDS.length) ? BOUNDS[bucket] : -1;
+    }
+
+    public long getBucketCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+}
@@ -0,0 +1,68 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package net.shipilev.elections.cikrf;
+
+/**
+ * Page levels in CIK site tree.
+ */
+public enum Level {
+
+    /**
+     * Сводная таблица, корень дерева
+     */
+    ROOT("root"),
+
+    /**
+     * Первый уровень: Федеральные? ИКи
+     */
+    FIRST("first"),
+
+    /**
+     * Второй уровень: Сводки по ТИКам
+     */
+    SECOND("second"),
+
+    /**
+     * Третий уровень: УИКи на сайтах субъектов
+     */
+    THIRD("third"),
+    ;
+
+    private final String prefix;
+
+    Level(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public Level next() {
+        switch (this) {
+            case ROOT:
+                return FIRST;
+            case FIRST:
+                return SECOND;
+            case SECOND:
+                return THIRD;
+            default:
+                return null;
+        }
+    }
+
+}
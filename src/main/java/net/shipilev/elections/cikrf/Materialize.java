@@ -0,0 +1,89 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package net.shipilev.elections.cikrf;
+
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Materializes the snapshot from content-addressed archive back into the page dir.
+ */
+public class Materialize {
+
+    public static void main(String[] args) throws IOException {
+        OptionParser parser = new OptionParser() {
+            {
+                accepts("h", "Print help and exit");
+            }
+        };
+
+        parser.formatHelpWith(new OptFormatter());
+
+        OptionSpec<String> oSnapshot = parser.accepts("s", "Snapshot to materialize: either snapshot page dir, or manifest file from archive snapshots/")
+                .withRequiredArg().describedAs("PATH").ofType(String.class).required();
+
+        OptionSpec<String> oArchiveDir = parser.accepts("a", "Archive dir. Overrides the one recorded in manifest.")
+                .withRequiredArg().describedAs("DIR").ofType(String.class);
+
+        OptionSpec<String> oPageDir = parser.accepts("p", "Page dir to materialize to.")
+                .withRequiredArg().describedAs("DIR").ofType(String.class)
+                .defaultsTo("download/");
+
+        OptionSpec<String> oPageFormat = parser.accepts("f", "Page store format: '" + PageStore.FORMAT_SEGMENTS + "' or '" + PageStore.FORMAT_FILES + "'.")
+                .withRequiredArg().describedAs("format").ofType(String.class)
+                .defaultsTo(PageStore.FORMAT_FILES);
+
+        OptionSet set = null;
+        try {
+            set = parser.parse(args);
+        } catch (OptionException e) {
+            parser.printHelpOn(System.err);
+            System.exit(1);
+        }
+
+        if (set.has("h")) {
+            parser.printHelpOn(System.err);
+            System.exit(0);
+        }
+
+        File snapshot = new File(set.valueOf(oSnapshot));
+        if (snapshot.isDirectory()) {
+            snapshot = new File(snapshot, ArchiveStore.MANIFEST_NAME);
+        }
+
+        PageStore source = ArchiveStore.openManifest(snapshot, set.valueOf(oArchiveDir));
+        PageStore target = PageStore.create(set.valueOf(oPageDir), set.valueOf(oPageFormat));
+
+        int count = 0;
+        for (Level level : Level.values()) {
+            for (String url : source.list(level)) {
+                target.put(level, url, source.read(url));
+                count++;
+            }
+        }
+
+        source.close();
+        target.close();
+
+        System.err.println("Materialized " + count + " pages from " + snapshot + " to " + set.valueOf(oPageDir));
+    }
+
+}
@@ -0,0 +1,94 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package net.shipilev.elections.cikrf;
+
+import java.util.Arrays;
+
+/**
+ * Metric values, addressed by metric index. Zero value means "no value", like in multiset.
+ * Iterate over values with {@link #next(int)}:
+ * <pre>
+ *     for (int i = v.next(0); i >= 0; i = v.next(i + 1)) { ... v.get(i) ... }
+ * </pre>
+ */
+public class MetricVector {
+
+    private Parser.Metric[] metrics;
+    private long[] values;
+
+    public MetricVector(int width) {
+        this.metrics = new Parser.Metric[width];
+        this.values = new long[width];
+    }
+
+    private void ensure(int width) {
+        if (width > values.length) {
+            metrics = Arrays.copyOf(metrics, width);
+            values = Arrays.copyOf(values, width);
+        }
+    }
+
+    public void add(Parser.Metric metric, long value) {
+        int index = metric.getIndex();
+        ensure(index + 1);
+        if (metrics[index] == null) {
+            metrics[index] = metric;
+        }
+        values[index] += value;
+    }
+
+    public void add(MetricVector other) {
+        ensure(other.values.length);
+        for (int i = 0; i < other.values.length; i++) {
+            if (metrics[i] == null) {
+                metrics[i] = other.metrics[i];
+            }
+            values[i] += other.values[i];
+        }
+    }
+
+    public long get(int index) {
+        return (index < values.length) ? values[index] : 0;
+    }
+
+    /**
+     * @return metric at the index, or null if nothing was added there
+     */
+    public Parser.Metric metric(int index) {
+        return (index < metrics.length) ? metrics[index] : null;
+    }
+
+    public int width() {
+        return values.length;
+    }
+
+    /**
+     * @return first index at or after given one with non-zero value, or -1 if there is none
+     */
+    public int next(int from) {
+        for (int i = from; i < values.length; i++) {
+            if (values[i] != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean isEmpty() {
+        return next(0) < 0;
+    }
+}
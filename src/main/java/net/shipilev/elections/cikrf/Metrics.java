@@ -0,0 +1,544 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package net.shipilev.elections.cikrf;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Crawl telemetry: per-host request statistics, per-level page statistics, queue depth, and the ETA.
+ *
+ * Metrics are periodically written into the page dir, both as JSON and in Prometheus text format,
+ * so that live crawl could be watched and tuned.
+ */
+public class Metrics {
+
+    public static final String JSON_NAME = "metrics.json";
+    public static final String PROMETHEUS_NAME = "metrics.prom";
+
+    private final int levelLimit;
+    private final long startTime;
+    private final ConcurrentMap<String, HostStats> hosts;
+    private final Map<Level, LevelStats> levels;
+
+    private volatile int inFlight;
+    private volatile int queued;
+
+    private ScheduledExecutorService exporter;
+    private File dir;
+
+    /**
+     * @param levelLimit maximal number of pages on each level
+     */
+    public Metrics(int levelLimit) {
+        this.levelLimit = levelLimit;
+        this.startTime = System.nanoTime();
+        this.hosts = new ConcurrentHashMap<String, HostStats>();
+        this.levels = new EnumMap<Level, LevelStats>(Level.class);
+        for (Level level : Level.values()) {
+            levels.put(level, new LevelStats());
+        }
+    }
+
+    public HostStats forUrl(String url) {
+        String host = RateLimiter.hostOf(url);
+        HostStats stats = hosts.get(host);
+        if (stats == null) {
+            stats = new HostStats();
+            HostStats existing = hosts.putIfAbsent(host, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @return statistics for all hosts seen so far, sorted by host
+     */
+    public Map<String, HostStats> getHosts() {
+        return new TreeMap<String, HostStats>(hosts);
+    }
+
+    public LevelStats forLevel(Level level) {
+        return levels.get(level);
+    }
+
+    /**
+     * @param inFlight number of pages being downloaded
+     * @param queued number of pages waiting for download
+     */
+    public void setQueue(int inFlight, int queued) {
+        this.inFlight = inFlight;
+        this.queued = queued;
+    }
+
+    /**
+     * Estimates the total number of pages, extrapolating the fan-out seen so far:
+     * links found on completed pages of the level predict the links on the rest of them.
+     */
+    public long getEstimatedTotal() {
+        long total = 0;
+        double expected = 0;
+        LevelStats parent = null;
+        for (Level level : Level.values()) {
+            LevelStats stats = levels.get(level);
+            double estimate = stats.getDiscovered();
+            if (parent != null && parent.getCompleted() > 0) {
+                estimate = Math.max(estimate, expected * stats.getDiscovered() / parent.getCompleted());
+            }
+            estimate = Math.min(estimate, levelLimit);
+            total += Math.round(estimate);
+            expected = estimate;
+            parent = stats;
+        }
+        return total;
+    }
+
+    public long getCompletedTotal() {
+        long total = 0;
+        for (LevelStats stats : levels.values()) {
+            total += stats.getCompleted();
+        }
+        return total;
+    }
+
+    /**
+     * @return estimated seconds until crawl completes, -1 if there is not enough data yet
+     */
+    public long getEtaSeconds() {
+        long downloaded = 0;
+        for (LevelStats stats : levels.values()) {
+            downloaded += stats.getPages();
+        }
+        if (downloaded == 0) {
+            return -1;
+        }
+        long remaining = Math.max(0, getEstimatedTotal() - getCompletedTotal());
+        return TimeUnit.NANOSECONDS.toSeconds((System.nanoTime() - startTime) / downloaded * remaining);
+    }
+
+    public static String formatSeconds(long seconds) {
+        if (seconds < 0) {
+            return "?";
+        }
+        return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+
+    /**
+     * Starts writing the metrics into the directory periodically.
+     * @param dir target directory
+     * @param periodSeconds export period; no export is done, if zero
+     */
+    public synchronized void startExport(File dir, int periodSeconds) {
+        if (periodSeconds <= 0) {
+            return;
+        }
+        this.dir = dir;
+        this.exporter = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("metrics-%d").setDaemon(true).build());
+        exporter.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    export();
+                } catch (IOException e) {
+                    System.err.println("Can not write metrics: " + e.getMessage());
+                }
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the periodic export, writing out the final metrics.
+     */
+    public synchronized void stopExport() throws IOException {
+        if (exporter == null) {
+            return;
+        }
+        exporter.shutdownNow();
+        exporter = null;
+        export();
+    }
+
+    private synchronized void export() throws IOException {
+        File json = new File(dir, JSON_NAME);
+        File jsonTmp = new File(dir, JSON_NAME + ".tmp");
+        PrintWriter pw = new PrintWriter(jsonTmp, "UTF-8");
+        writeJson(pw);
+        pw.close();
+        replace(jsonTmp, json);
+
+        File prom = new File(dir, PROMETHEUS_NAME);
+        File promTmp = new File(dir, PROMETHEUS_NAME + ".tmp");
+        pw = new PrintWriter(promTmp, "UTF-8");
+        writePrometheus(pw);
+        pw.close();
+        replace(promTmp, prom);
+    }
+
+    private static void replace(File tmp, File file) throws IOException {
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Can not write " + file);
+            }
+        }
+    }
+
+    private double getUptimeSeconds() {
+        return (System.nanoTime() - startTime) / 1e9;
+    }
+
+    public void writeJson(PrintWriter pw) {
+        double uptime = getUptimeSeconds();
+
+        pw.println("{");
+        pw.println("  \"uptimeSeconds\": " + format(uptime) + ",");
+        pw.println("  \"inFlight\": " + inFlight + ",");
+        pw.println("  \"queued\": " + queued + ",");
+        pw.println("  \"pagesCompleted\": " + getCompletedTotal() + ",");
+        pw.println("  \"pagesEstimated\": " + getEstimatedTotal() + ",");
+        pw.println("  \"etaSeconds\": " + getEtaSeconds() + ",");
+
+        pw.println("  \"levels\": {");
+        String sep = "";
+        for (Map.Entry<Level, LevelStats> e : levels.entrySet()) {
+            LevelStats s = e.getValue();
+            pw.print(sep);
+            pw.println("    \"" + e.getKey().getPrefix() + "\": {");
+            pw.println("      \"discovered\": " + s.getDiscovered() + ",");
+            pw.println("      \"completed\": " + s.getCompleted() + ",");
+            pw.println("      \"pages\": " + s.getPages() + ",");
+            pw.println("      \"unchanged\": " + s.getUnchanged() + ",");
+            pw.println("      \"failed\": " + s.getFailed() + ",");
+            pw.println("      \"bytes\": " + s.getBytes() + ",");
+            pw.println("      \"pagesPerSec\": " + format(s.getPages() / uptime) + ",");
+            pw.println("      \"latencyMs\": " + jsonLatency(s.getLatency()));
+            pw.print("    }");
+            sep = ",\n";
+        }
+        pw.println();
+        pw.println("  },");
+
+        pw.println("  \"hosts\": {");
+        sep = "";
+        for (Map.Entry<String, HostStats> e : new TreeMap<String, HostStats>(hosts).entrySet()) {
+            HostStats s = e.getValue();
+            pw.print(sep);
+            pw.println("    \"" + jsonEscape(e.getKey()) + "\": {");
+            pw.println("      \"requests\": " + s.getRequests() + ",");
+            pw.println("      \"requestsPerSec\": " + format(s.getRequests() / uptime) + ",");
+            pw.println("      \"errors\": " + s.getErrors() + ",");
+            pw.println("      \"notModified\": " + s.getNotModified() + ",");
+            pw.println("      \"bytes\": " + s.getBytes() + ",");
+            pw.println("      \"retries\": " + s.getRetries() + ",");
+            pw.println("      \"handshakes\": " + s.getHandshakes() + ",");
+            pw.println("      \"breakerWaits\": " + s.getBreakerWaits() + ",");
+            pw.println("      \"concurrency\": " + format(s.getConcurrency()) + ",");
+            pw.println("      \"latencyMs\": " + jsonLatency(s.getLatency()));
+            pw.print("    }");
+            sep = ",\n";
+        }
+        pw.println();
+        pw.println("  }");
+        pw.println("}");
+    }
+
+    public void writePrometheus(PrintWriter pw) {
+        Map<String, HostStats> sortedHosts = new TreeMap<String, HostStats>(hosts);
+
+        gauge(pw, "cikrf_uptime_seconds", format(getUptimeSeconds()));
+        gauge(pw, "cikrf_in_flight", String.valueOf(inFlight));
+        gauge(pw, "cikrf_queued", String.valueOf(queued));
+        gauge(pw, "cikrf_pages_estimated", String.valueOf(getEstimatedTotal()));
+        gauge(pw, "cikrf_eta_seconds", String.valueOf(getEtaSeconds()));
+
+        pw.println("# TYPE cikrf_requests_total counter");
+        for (Map.Entry<String, HostStats> e : sortedHosts.entrySet()) {
+            pw.println("cikrf_requests_total" + hostLabel(e.getKey()) + " " + e.getValue().getRequests());
+        }
+        pw.println("# TYPE cikrf_request_errors_total counter");
+        for (Map.Entry<String, HostStats> e : sortedHosts.entrySet()) {
+            pw.println("cikrf_request_errors_total" + hostLabel(e.getKey()) + " " + e.getValue().getErrors());
+        }
+        pw.println("# TYPE cikrf_not_modified_total counter");
+        for (Map.Entry<String, HostStats> e : sortedHosts.entrySet()) {
+            pw.println("cikrf_not_modified_total" + hostLabel(e.getKey()) + " " + e.getValue().getNotModified());
+        }
+        pw.println("# TYPE cikrf_response_bytes_total counter");
+        for (Map.Entry<String, HostStats> e : sortedHosts.entrySet()) {
+            pw.println("cikrf_response_bytes_total" + hostLabel(e.getKey()) + " " + e.getValue().getBytes());
+        }
+        pw.println("# TYPE cikrf_retries_total counter");
+        for (Map.Entry<String, HostStats> e : sortedHosts.entrySet()) {
+            pw.println("cikrf_retries_total" + hostLabel(e.getKey()) + " " + e.getValue().getRetries());
+        }
+        pw.println("# TYPE cikrf_handshakes_total counter");
+        for (Map.Entry<String, HostStats> e : sortedHosts.entrySet()) {
+            pw.println("cikrf_handshakes_total" + hostLabel(e.getKey()) + " " + e.getValue().getHandshakes());
+        }
+        pw.println("# TYPE cikrf_breaker_waits_total counter");
+        for (Map.Entry<String, HostStats> e : sortedHosts.entrySet()) {
+            pw.println("cikrf_breaker_waits_total" + hostLabel(e.getKey()) + " " + e.getValue().getBreakerWaits());
+        }
+        pw.println("# TYPE cikrf_concurrency_limit gauge");
+        for (Map.Entry<String, HostStats> e : sortedHosts.entrySet()) {
+            pw.println("cikrf_concurrency_limit" + hostLabel(e.getKey()) + " " + format(e.getValue().getConcurrency()));
+        }
+        pw.println("# TYPE cikrf_request_latency_seconds histogram");
+        for (Map.Entry<String, HostStats> e : sortedHosts.entrySet()) {
+            histogram(pw, "cikrf_request_latency_seconds", "host=\"" + jsonEscape(e.getKey()) + "\"", e.getValue().getLatency());
+        }
+
+        pw.println("# TYPE cikrf_pages_discovered gauge");
+        for (Map.Entry<Level, LevelStats> e : levels.entrySet()) {
+            pw.println("cikrf_pages_discovered" + levelLabel(e.getKey()) + " " + e.getValue().getDiscovered());
+        }
+        pw.println("# TYPE cikrf_pages_completed gauge");
+        for (Map.Entry<Level, LevelStats> e : levels.entrySet()) {
+            pw.println("cikrf_pages_completed" + levelLabel(e.getKey()) + " " + e.getValue().getCompleted());
+        }
+        pw.println("# TYPE cikrf_pages_total counter");
+        for (Map.Entry<Level, LevelStats> e : levels.entrySet()) {
+            pw.println("cikrf_pages_total" + levelLabel(e.getKey()) + " " + e.getValue().getPages());
+        }
+        pw.println("# TYPE cikrf_pages_unchanged_total counter");
+        for (Map.Entry<Level, LevelStats> e : levels.entrySet()) {
+            pw.println("cikrf_pages_unchanged_total" + levelLabel(e.getKey()) + " " + e.getValue().getUnchanged());
+        }
+        pw.println("# TYPE cikrf_pages_failed_total counter");
+        for (Map.Entry<Level, LevelStats> e : levels.entrySet()) {
+            pw.println("cikrf_pages_failed_total" + levelLabel(e.getKey()) + " " + e.getValue().getFailed());
+        }
+        pw.println("# TYPE cikrf_page_bytes_total counter");
+        for (Map.Entry<Level, LevelStats> e : levels.entrySet()) {
+            pw.println("cikrf_page_bytes_total" + levelLabel(e.getKey()) + " " + e.getValue().getBytes());
+        }
+        pw.println("# TYPE cikrf_page_latency_seconds histogram");
+        for (Map.Entry<Level, LevelStats> e : levels.entrySet()) {
+            histogram(pw, "cikrf_page_latency_seconds", "level=\"" + e.getKey().getPrefix() + "\"", e.getValue().getLatency());
+        }
+    }
+
+    private static void gauge(PrintWriter pw, String name, String value) {
+        pw.println("# TYPE " + name + " gauge");
+        pw.println(name + " " + value);
+    }
+
+    private static void histogram(PrintWriter pw, String name, String labels, LatencyHistogram h) {
+        long cumulative = 0;
+        for (int b = 0; b < LatencyHistogram.getBuckets(); b++) {
+            cumulative += h.getBucketCount(b);
+            long bound = LatencyHistogram.getBound(b);
+            String le = (bound < 0) ? "+Inf" : String.valueOf(bound / 1000.0);
+            pw.println(name + "_bucket{" + labels + ",le=\"" + le + "\"} " + cumulative);
+        }
+        pw.println(name + "_sum{" + labels + "} " + (h.getSumMillis() / 1000.0));
+        pw.println(name + "_count{" + labels + "} " + h.getCount());
+    }
+
+    private static String hostLabel(String host) {
+        return "{host=\"" + jsonEscape(host) + "\"}";
+    }
+
+    private static String levelLabel(Level level) {
+        return "{level=\"" + level.getPrefix() + "\"}";
+    }
+
+    private static String jsonLatency(LatencyHistogram h) {
+        return "{\"p50\": " + h.percentileMillis(0.5) + ", \"p99\": " + h.percentileMillis(0.99) + ", \"max\": " + h.getMaxMillis() + "}";
+    }
+
+    private static String format(double v) {
+        return String.format(Locale.US, "%.2f", v);
+    }
+
+    /**
+     * Escapes the string for JSON, also good for Prometheus label values.
+     */
+    private static String jsonEscape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Requests to a single host.
+     */
+    public static class HostStats {
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong notModified = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong handshakes = new AtomicLong();
+        private final AtomicLong breakerWaits = new AtomicLong();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private volatile double concurrency;
+
+        /**
+         * @param latencyNanos request latency
+         * @param bytes bytes received, as they went over the wire
+         * @param ok false, if request had failed
+         * @param notModified true, if server confirmed the page had not changed
+         */
+        public void request(long latencyNanos, long bytes, boolean ok, boolean notModified) {
+            requests.incrementAndGet();
+            this.bytes.addAndGet(bytes);
+            latency.record(latencyNanos);
+            if (!ok) {
+                errors.incrementAndGet();
+            }
+            if (notModified) {
+                this.notModified.incrementAndGet();
+            }
+        }
+
+        public void retry() {
+            retries.incrementAndGet();
+        }
+
+        public void handshake() {
+            handshakes.incrementAndGet();
+        }
+
+        public void breakerWait() {
+            breakerWaits.incrementAndGet();
+        }
+
+        public void setConcurrency(double concurrency) {
+            this.concurrency = concurrency;
+        }
+
+        public long getRequests() {
+            return requests.get();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        public long getNotModified() {
+            return notModified.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public long getRetries() {
+            return retries.get();
+        }
+
+        public long getHandshakes() {
+            return handshakes.get();
+        }
+
+        public long getBreakerWaits() {
+            return breakerWaits.get();
+        }
+
+        public double getConcurrency() {
+            return concurrency;
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+    }
+
+    /**
+     * Pages of a single level.
+     */
+    public static class LevelStats {
+        private final AtomicLong pages = new AtomicLong();
+        private final AtomicLong unchanged = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private volatile int discovered;
+        private volatile int completed;
+
+        /**
+         * @param latencyNanos time from submitting the page to its arrival, retries included
+         * @param bytes page size
+         * @param unchanged true, if page had not changed since previous crawl
+         */
+        public void page(long latencyNanos, long bytes, boolean unchanged) {
+            pages.incrementAndGet();
+            this.bytes.addAndGet(bytes);
+            latency.record(latencyNanos);
+            if (unchanged) {
+                this.unchanged.incrementAndGet();
+            }
+        }
+
+        public void failed() {
+            failed.incrementAndGet();
+        }
+
+        /**
+         * @param discovered pages discovered so far, previous runs included
+         * @param completed pages completed so far, previous runs included
+         */
+        public void setProgress(int discovered, int completed) {
+            this.discovered = discovered;
+            this.completed = completed;
+        }
+
+        public long getPages() {
+            return pages.get();
+        }
+
+        public long getUnchanged() {
+            return unchanged.get();
+        }
+
+        public long getFailed() {
+            return failed.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public int getDiscovered() {
+            return discovered;
+        }
+
+        public int getCompleted() {
+            return completed;
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+    }
+
+}
@@ -0,0 +1,162 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package net.shipilev.elections.cikrf;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Downloaded page, along with its place in the site tree.
+ * Page keeps the bytes exactly as server sent them.
+ */
+public class Page {
+
+    private final String url;
+    private final Level level;
+    private final byte[] body;
+    private final boolean unchanged;
+
+    public Page(String url, Level level, byte[] body, boolean unchanged) {
+        this.url = url;
+        this.level = level;
+        this.body = body;
+        this.unchanged = unchanged;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * @return true, if page is the same as downloaded by previous incremental run
+     */
+    public boolean isUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * Extracts the links to the pages of the following levels.
+     * @return links, in document order
+     */
+    public List<Link> getLinks() {
+        List<Link> result = new ArrayList<Link>();
+
+        if (level == Level.THIRD) {
+            return result;
+        }
+
+        PageScanner.Result scan = PageScanner.scan(body);
+
+        if (level == Level.ROOT || level == Level.FIRST) {
+            for (String href : scan.getNobrLinks()) {
+                result.add(new Link(href, level.next()));
+            }
+        }
+
+        /**
+         * Спасибо дядям из избиркома, нужно перейти на сайт конкретного ТИКа для получения подробностей по УИКам.
+         * На первом уровне это shortcut для тех страниц, которые не имеют gateway-страниц (типа "Зарубежных территорий")
+         */
+        if (level == Level.FIRST || level == Level.SECOND) {
+            for (String href : scan.getUikLinks()) {
+                result.add(new Link(href, Level.THIRD));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Guesses the page charset. CIK serves cp1251, but the pages re-serialized by older spiders are in UTF-8.
+     * Russian text in cp1251 is almost never a valid UTF-8, so the check is reliable enough.
+     */
+    public static String charsetOf(byte[] body) {
+        int i = 0;
+        while (i < body.length) {
+            int b = body[i] & 0xFF;
+            int extra;
+            if (b < 0x80) {
+                i++;
+                continue;
+            } else if (b >= 0xC2 && b <= 0xDF) {
+                extra = 1;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                extra = 2;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                extra = 3;
+            } else {
+                return "cp1251";
+            }
+
+            if (i + extra >= body.length) {
+                return "cp1251";
+            }
+            for (int c = 1; c <= extra; c++) {
+                if ((body[i + c] & 0xC0) != 0x80) {
+                    return "cp1251";
+                }
+            }
+            i += extra + 1;
+        }
+        return "UTF-8";
+    }
+
+    public static String decode(byte[] body) {
+        try {
+            return new String(body, charsetOf(body));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static class Link {
+        private final String url;
+        private final Level level;
+
+        public Link(String url, Level level) {
+            this.url = url;
+            this.level = level;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public Level getLevel() {
+            return level;
+        }
+
+        @Override
+        public String toString() {
+            return url;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return level.getPrefix() + ": " + url;
+    }
+}
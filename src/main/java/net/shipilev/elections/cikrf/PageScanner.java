@@ -0,0 +1,501 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package net.shipilev.elections.cikrf;
+
+import org.jsoup.nodes.Entities;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Lightweight single-pass scanner over raw page bytes.
+ *
+ * Does not build DOM: it only tracks the stack of open elements, which is enough to find
+ * the links to the next level, the links to subject sites, and the "key" form input.
+ * The links and the input are matched by the same element paths the Jsoup selectors used.
+ */
+public class PageScanner {
+
+    private static final String UIK_LINK_TEXT = "сайт избирательной комиссии субъекта Российской Федерации";
+
+    private static final Pattern WHITESPACE = Pattern.compile("[\\s\\u00A0]+");
+
+    /**
+     * Paths below html > body; tbody is implied, and is not kept in the stack.
+     */
+    private static final List<String> NOBR_LINK_PATH = Arrays.asList(
+            "table", "tr", "td", "table", "tr", "td", "div", "table", "tr", "td", "nobr");
+    private static final List<String> UIK_LINK_PATH = Arrays.asList("table", "tr", "td");
+    private static final List<String> FORM_PATH = Arrays.asList("form");
+
+    private static final Set<String> VOID = new HashSet<String>(Arrays.asList(
+            "area", "base", "br", "col", "embed", "hr", "img", "input", "link", "meta", "param", "source", "wbr"
+    ));
+
+    private static final Set<String> NOT_KEPT = new HashSet<String>(Arrays.asList(
+            "tbody", "thead", "tfoot", "script", "style"
+    ));
+
+    private static final Set<String> TABLE = Collections.singleton("table");
+    private static final Set<String> ROW = Collections.singleton("tr");
+    private static final Set<String> ROW_OR_TABLE = new HashSet<String>(Arrays.asList("tr", "table"));
+    private static final Set<String> CELL = new HashSet<String>(Arrays.asList("td", "th"));
+
+    /**
+     * These close the open paragraph.
+     */
+    private static final Set<String> CLOSE_P = new HashSet<String>(Arrays.asList(
+            "p", "div", "table", "form", "ul", "ol", "dl", "pre", "blockquote", "center", "h1", "h2", "h3", "h4", "h5", "h6", "hr"
+    ));
+
+    private final byte[] buf;
+    private final String charset;
+    private int pos;
+
+    private final List<String> stack;
+
+    private final List<String> nobrLinks;
+    private final List<String> uikLinks;
+    private Integer loginKey;
+
+    private String anchorHref;
+    private boolean anchorUik;
+    private int anchorTextStart;
+    private StringBuilder anchorText;
+
+    private PageScanner(byte[] buf, String charset) {
+        this.buf = buf;
+        this.charset = charset;
+        this.stack = new ArrayList<String>();
+        this.nobrLinks = new ArrayList<String>();
+        this.uikLinks = new ArrayList<String>();
+    }
+
+    /**
+     * Scans the page.
+     * @param body raw page bytes
+     * @return scan result
+     */
+    public static Result scan(byte[] body) {
+        PageScanner scanner = new PageScanner(body, Page.charsetOf(body));
+        scanner.run();
+        return new Result(scanner.nobrLinks, scanner.uikLinks, scanner.loginKey);
+    }
+
+    private void run() {
+        int len = buf.length;
+        while (pos < len) {
+            if (buf[pos] != '<') {
+                pos++;
+                continue;
+            }
+
+            if (startsWith(pos, "<!--")) {
+                int end = indexOf(pos + 4, "-->");
+                appendAnchorText(pos);
+                pos = (end < 0) ? len : end + 3;
+                anchorTextStart = pos;
+                continue;
+            }
+
+            int tagStart = pos;
+            pos++;
+
+            boolean closing = false;
+            if (pos < len && buf[pos] == '/') {
+                closing = true;
+                pos++;
+            }
+
+            int nameStart = pos;
+            while (pos < len && isNameChar(buf[pos])) {
+                pos++;
+            }
+            if (pos == nameStart) {
+                // not a tag, just stray '<'
+                continue;
+            }
+            String name = lowerAscii(nameStart, pos);
+
+            String href = null;
+            String inputName = null;
+            String inputValue = null;
+
+            // attributes
+            while (pos < len && buf[pos] != '>') {
+                if (isSpace(buf[pos]) || buf[pos] == '/') {
+                    pos++;
+                    continue;
+                }
+
+                int attrStart = pos;
+                while (pos < len && buf[pos] != '=' && buf[pos] != '>' && !isSpace(buf[pos])) {
+                    pos++;
+                }
+                String attr = lowerAscii(attrStart, pos);
+
+                while (pos < len && isSpace(buf[pos])) {
+                    pos++;
+                }
+
+                String value = null;
+                if (pos < len && buf[pos] == '=') {
+                    pos++;
+                    while (pos < len && isSpace(buf[pos])) {
+                        pos++;
+                    }
+                    if (pos < len && (buf[pos] == '"' || buf[pos] == '\'')) {
+                        byte quote = buf[pos++];
+                        int valueStart = pos;
+                        while (pos < len && buf[pos] != quote) {
+                            pos++;
+                        }
+                        value = unescape(decode(valueStart, pos));
+                        pos++;
+                    } else {
+                        int valueStart = pos;
+                        while (pos < len && buf[pos] != '>' && !isSpace(buf[pos])) {
+                            pos++;
+                        }
+                        value = unescape(decode(valueStart, pos));
+                    }
+                }
+
+                if ("href".equals(attr)) {
+                    href = value;
+                } else if ("name".equals(attr)) {
+                    inputName = value;
+                } else if ("value".equals(attr)) {
+                    inputValue = value;
+                }
+            }
+            pos++;
+
+            if (anchorText != null) {
+                appendAnchorText(tagStart);
+            }
+
+            if (closing) {
+                closeTag(name);
+            } else {
+                openTag(name, href, inputName, inputValue);
+            }
+            anchorTextStart = pos;
+
+            if (!closing && ("script".equals(name) || "style".equals(name))) {
+                int end = indexOfIgnoreCase(pos, "</" + name);
+                pos = (end < 0) ? len : end;
+                anchorTextStart = pos;
+            }
+        }
+
+        if (anchorText != null) {
+            appendAnchorText(len);
+            finishAnchor();
+        }
+    }
+
+    private void openTag(String name, String href, String inputName, String inputValue) {
+        if (CLOSE_P.contains(name)) {
+            popUntilAny("p", "td", "th", "table");
+        }
+
+        if ("input".equals(name)) {
+            if ("key".equals(inputName) && inputValue != null && pathIs(FORM_PATH) && loginKey == null) {
+                try {
+                    loginKey = Integer.valueOf(inputValue.trim());
+                } catch (NumberFormatException e) {
+                    // not a key we know
+                }
+            }
+            return;
+        }
+
+        if ("br".equals(name) && anchorText != null && isTop("a")) {
+            anchorText.append(' ');
+        }
+
+        if (VOID.contains(name) || NOT_KEPT.contains(name)) {
+            return;
+        }
+
+        /**
+         * Неявно закрываемые теги: таблицы в HTML на сайте ЦИКа далеко не всегда аккуратные.
+         * Всё, что не закрыто внутри таблицы, закрывается вместе с ячейкой или строкой.
+         */
+        if ("tr".equals(name)) {
+            clearTo(ROW, TABLE);
+        } else if ("td".equals(name) || "th".equals(name)) {
+            clearTo(CELL, ROW_OR_TABLE);
+            if (isTop("table")) {
+                stack.add("tr");
+            }
+        } else if ("nobr".equals(name)) {
+            // вложенный nobr закрывает открытый, как в Jsoup
+            popUntilAny("nobr", "td", "th", "table");
+        } else if ("body".equals(name)) {
+            popUntilAny("head");
+        } else if ("a".equals(name)) {
+            if (anchorText != null) {
+                finishAnchor();
+            }
+            popUntilAny("a");
+        }
+
+        if ("a".equals(name)) {
+            anchorHref = href;
+            anchorUik = pathIs(UIK_LINK_PATH);
+            anchorText = new StringBuilder();
+            if (href != null && pathIs(NOBR_LINK_PATH)) {
+                nobrLinks.add(href);
+            }
+        }
+
+        stack.add(name);
+    }
+
+    private void closeTag(String name) {
+        if ("a".equals(name) && anchorText != null) {
+            finishAnchor();
+        }
+        if (stack.contains(name)) {
+            while (!stack.isEmpty()) {
+                if (stack.remove(stack.size() - 1).equals(name)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Pops the implicitly closed tags: the ones up to (and including) the first of {@code tags[0]},
+     * stopping at the enclosing tags listed after it.
+     */
+    private void popUntilAny(String... tags) {
+        for (int i = stack.size() - 1; i >= 0; i--) {
+            String s = stack.get(i);
+            if (s.equals(tags[0])) {
+                while (stack.size() > i) {
+                    stack.remove(stack.size() - 1);
+                }
+                return;
+            }
+            for (int t = 1; t < tags.length; t++) {
+                if (s.equals(tags[t])) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Table context for the new row or cell: pops everything up to the nearest {@code closed} tag, inclusive,
+     * or up to the nearest {@code kept} tag, exclusive, whichever is closer.
+     */
+    private void clearTo(Set<String> closed, Set<String> kept) {
+        for (int i = stack.size() - 1; i >= 0; i--) {
+            String s = stack.get(i);
+            if (closed.contains(s) || kept.contains(s)) {
+                int keep = closed.contains(s) ? i : i + 1;
+                while (stack.size() > keep) {
+                    stack.remove(stack.size() - 1);
+                }
+                return;
+            }
+        }
+    }
+
+    private boolean isTop(String name) {
+        return !stack.isEmpty() && stack.get(stack.size() - 1).equals(name);
+    }
+
+    /**
+     * @return true, if the open elements below html > body are exactly the path
+     */
+    private boolean pathIs(List<String> path) {
+        int from = 0;
+        if (from < stack.size() && stack.get(from).equals("html")) {
+            from++;
+        }
+        if (from < stack.size() && stack.get(from).equals("body")) {
+            from++;
+        }
+        return stack.size() - from == path.size() && stack.subList(from, stack.size()).equals(path);
+    }
+
+    /**
+     * Only the anchor own text is kept, as with {@code Element.ownText()}.
+     */
+    private void appendAnchorText(int end) {
+        if (anchorText != null && end > anchorTextStart && isTop("a")) {
+            anchorText.append(decode(anchorTextStart, end));
+        }
+    }
+
+    private void finishAnchor() {
+        /**
+         * Ссылка на сайт субъекта лежит прямо в ячейке верхней таблицы.
+         */
+        if (anchorHref != null && anchorUik) {
+            String text = WHITESPACE.matcher(unescape(anchorText.toString())).replaceAll(" ");
+            if (text.contains(UIK_LINK_TEXT)) {
+                uikLinks.add(anchorHref);
+            }
+        }
+        anchorText = null;
+        anchorHref = null;
+    }
+
+    private String decode(int from, int to) {
+        try {
+            return new String(buf, from, to - from, charset);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String lowerAscii(int from, int to) {
+        char[] cs = new char[to - from];
+        for (int i = from; i < to; i++) {
+            byte b = buf[i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            cs[i - from] = (char) (b & 0xFF);
+        }
+        return new String(cs);
+    }
+
+    private boolean startsWith(int at, String s) {
+        if (at + s.length() > buf.length) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (buf[at + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(int from, String s) {
+        for (int i = from; i + s.length() <= buf.length; i++) {
+            if (startsWith(i, s)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOfIgnoreCase(int from, String s) {
+        for (int i = from; i + s.length() <= buf.length; i++) {
+            if (buf[i] == '<' && lowerAscii(i, i + s.length()).equals(s)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isNameChar(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9');
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+    }
+
+    /**
+     * Decodes HTML character references.
+     */
+    static String unescape(String s) {
+        int amp = s.indexOf('&');
+        if (amp < 0) {
+            return s;
+        }
+
+        StringBuilder sb = new StringBuilder(s.length());
+        sb.append(s, 0, amp);
+        int i = amp;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            int semi = (c == '&') ? s.indexOf(';', i) : -1;
+            if (semi > i + 1 && semi - i <= 10) {
+                String ref = s.substring(i + 1, semi);
+                Character ch = null;
+                try {
+                    if (ref.startsWith("#x") || ref.startsWith("#X")) {
+                        ch = (char) Integer.parseInt(ref.substring(2), 16);
+                    } else if (ref.startsWith("#")) {
+                        ch = (char) Integer.parseInt(ref.substring(1));
+                    } else if (Entities.isNamedEntity(ref)) {
+                        ch = Entities.getCharacterByName(ref);
+                    }
+                } catch (NumberFormatException e) {
+                    // leave as is
+                }
+                if (ch != null) {
+                    sb.append(ch.charValue());
+                    i = semi + 1;
+                    continue;
+                }
+            }
+            sb.append(c);
+            i++;
+        }
+        return sb.toString();
+    }
+
+    public static class Result {
+        private final List<String> nobrLinks;
+        private final List<String> uikLinks;
+        private final Integer loginKey;
+
+        public Result(List<String> nobrLinks, List<String> uikLinks, Integer loginKey) {
+            this.nobrLinks = nobrLinks;
+            this.uikLinks = uikLinks;
+            this.loginKey = loginKey;
+        }
+
+        /**
+         * @return links from the result table, leading to the next level
+         */
+        public List<String> getNobrLinks() {
+            return nobrLinks;
+        }
+
+        /**
+         * @return links to the subject commission sites
+         */
+        public List<String> getUikLinks() {
+            return uikLinks;
+        }
+
+        /**
+         * @return anti-bot key from the form; null, if there is no form
+         */
+        public Integer getLoginKey() {
+            return loginKey;
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package net.shipilev.elections.cikrf;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Storage for downloaded pages.
+ *
+ * Spider puts pages by their URLs; parser lists the pages on each level and reads them back.
+ * Page names returned by {@link #list(Level)} are store-specific handles for {@link #read(String)}.
+ */
+public abstract class PageStore {
+
+    public static final String FORMAT_SEGMENTS = "segments";
+    public static final String FORMAT_FILES = "files";
+
+    /**
+     * Opens the store for writing.
+     * @param dir page dir
+     * @param format store format
+     */
+    public static PageStore create(String dir, String format) throws IOException {
+        if (FORMAT_SEGMENTS.equals(format)) {
+            return new SegmentStore(dir);
+        } else if (FORMAT_FILES.equals(format)) {
+            return new DirectoryStore(dir);
+        } else {
+            throw new IllegalArgumentException("Unknown page store format: " + format);
+        }
+    }
+
+    /**
+     * Opens existing store for reading, detecting its format.
+     * @param dir page dir
+     */
+    public static PageStore open(String dir) throws IOException {
+        if (ArchiveStore.exists(dir)) {
+            return ArchiveStore.open(dir);
+        } else if (SegmentStore.exists(dir)) {
+            return new SegmentStore(dir);
+        } else {
+            return new DirectoryStore(dir);
+        }
+    }
+
+    public abstract void put(Level level, String url, byte[] body) throws IOException;
+
+    public abstract boolean contains(Level level, String url);
+
+    /**
+     * @return page body; null, if there is no such page
+     */
+    public abstract byte[] get(Level level, String url) throws IOException;
+
+    public abstract void remove(Level level, String url) throws IOException;
+
+    /**
+     * @return names of the pages on given level, in stable order
+     */
+    public abstract List<String> list(Level level) throws IOException;
+
+    public abstract byte[] read(String name) throws IOException;
+
+    public abstract void close() throws IOException;
+
+}
@@ -16,7 +16,8 @@
 
 package net.shipilev.elections.cikrf;
 
-import com.google.common.collect.Multiset;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
@@ -24,165 +25,250 @@ import org.jsoup.select.Elements;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 public class Parser {
 
+    private final String resultsDir;
+    private final MetricDictionary dictionary;
+    private final Geography geographies;
+    private final Map<Level, TableData> tables;
     private boolean headerPrinted;
 
     public static void main(String[] args) throws IOException, InterruptedException {
         Shared.init(args);
 
-        new File(Shared.resultsDir).mkdirs();
+        parseAll(Shared.pageDir, Shared.resultsDir, new PrintWriter(System.out));
+    }
+
+    /**
+     * Parses the snapshot into CSVs, and writes summaries next to them.
+     * @param pageDir snapshot page dir
+     * @param resultsDir output dir
+     * @param console writer to print summaries to, or null
+     */
+    public static void parseAll(String pageDir, String resultsDir, PrintWriter console) throws IOException {
+        PageStore store = PageStore.open(pageDir);
+
+        int cpus = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(cpus,
+                new ThreadFactoryBuilder().setNameFormat("parse-%d").setDaemon(true).build());
+
+        try {
+            Parser p = new Parser(resultsDir);
+
+            System.err.printf("Parsing pages from %s: ", pageDir);
+
+            /**
+             * Уровни независимы, страницы всех трёх разбираются вперемешку.
+             * Третий уровень нужен, только если на втором нет данных.
+             */
+            List<Future<TableData>> root = p.submitPages(store, Level.ROOT, pool);
+            List<Future<TableData>> first = p.submitPages(store, Level.FIRST, pool);
+            List<Future<TableData>> second = p.submitPages(store, Level.SECOND, pool);
+
+            p.mergePages(Level.ROOT, root);
+            p.mergePages(Level.FIRST, first);
+            p.mergePages(Level.SECOND, second);
+            if (p.tables.get(Level.SECOND).getGeographies().isEmpty()) {
+                p.mergePages(Level.THIRD, p.submitPages(store, Level.THIRD, pool));
+            }
+            System.err.printf("\n");
+
+            p.finish(console);
+        } finally {
+            pool.shutdownNow();
+            store.close();
+        }
+    }
+
+    /**
+     * Parses the page and merges it into the level data.
+     * Can be called from many threads at once, e.g. by spider as pages arrive.
+     * @param level page level
+     * @param name page name, for error messages
+     * @param body raw page body
+     */
+    public void accept(Level level, String name, byte[] body) {
+        TableData data = parse(name, body);
+        if (data != null) {
+            TableData overall = tables.get(level);
+            synchronized (overall) {
+                overall.merge(data);
+            }
+        }
+    }
+
+    /**
+     * @return page data, or null if page has no data
+     */
+    private TableData parse(String name, byte[] body) {
+        try {
+            String html = Page.decode(body);
+            TableScanner.Result table = TableScanner.scan(html);
+            if (table == null) {
+                table = select(Jsoup.parse(html));
+            }
+            return parseUIK(table);
+        } catch (IllegalStateException e) {
+            System.err.printf(" (error in %s: %s) ", name, e.getMessage());
+            return null;
+        } catch (RuntimeException e) {
+            /**
+             * Кривая таблица (не число в ячейке, лишние столбцы) не должна ронять разбор остальных страниц.
+             */
+            System.err.printf(" (error in %s: %s) ", name, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes CSVs and summaries for all the pages accepted so far.
+     * @param console writer to print summaries to, or null
+     */
+    public void finish(PrintWriter console) throws IOException {
+        new File(resultsDir).mkdirs();
 
-        Parser p = new Parser();
-        SummaryData cikSummary = p.parsePages(Shared.pageDir, "root", "output-ciks.csv", true);
-        SummaryData tikSummary = p.parsePages(Shared.pageDir, "first-", "output-tiks.csv", true);
-        SummaryData uikSummary = p.parsePages(Shared.pageDir, "second-", "output-uiks.csv", false);
+        SummaryData cikSummary = summarize(Level.ROOT, "output-ciks.csv", true);
+        SummaryData tikSummary = summarize(Level.FIRST, "output-tiks.csv", true);
+        SummaryData uikSummary = summarize(Level.SECOND, "output-uiks.csv", false);
         if (uikSummary.keys().isEmpty()) {
-            uikSummary = p.parsePages(Shared.pageDir, "third-", "output-uiks.csv", false);
+            uikSummary = summarize(Level.THIRD, "output-uiks.csv", false);
         }
 
-        PrintWriter pw = new PrintWriter(System.out);
-        pw.println();
+        Reconciler.Result check = null;
+        if (Shared.checkSummaries) {
+            check = new Reconciler(Shared.checkTolerance, Shared.checkRelTolerance).reconcile(
+                    Arrays.asList("CIK", "TIK", "UIK"),
+                    Arrays.asList(cikSummary, tikSummary, uikSummary));
+        }
 
-        p.printSummaries(pw, "CIK", cikSummary, Collections.<String>emptyList());
-        p.printSummaries(pw, "TIK", tikSummary, Collections.<String>emptyList());
-        p.printSummaries(pw, "UIK", uikSummary, Collections.<String>emptyList());
+        if (console != null) {
+            console.println();
 
-        p.checkSummaries(pw, cikSummary, tikSummary, uikSummary);
+            printSummaries(console, "CIK", cikSummary, Collections.<String>emptyList());
+            printSummaries(console, "TIK", tikSummary, Collections.<String>emptyList());
+            printSummaries(console, "UIK", uikSummary, Collections.<String>emptyList());
 
-        pw = new PrintWriter(Shared.resultsDir + "/" + "summary.log", "UTF-8");
-        p.printSummaries(pw, "CIK", cikSummary, Collections.<String>emptyList());
-        p.printSummaries(pw, "TIK", tikSummary, Collections.<String>emptyList());
-        p.printSummaries(pw, "UIK", uikSummary, Collections.<String>emptyList());
+            if (check != null) {
+                check.print(console);
+            }
+            console.flush();
+        }
+
+        PrintWriter pw = new PrintWriter(resultsDir + "/" + "summary.log", "UTF-8");
+        printSummaries(pw, "CIK", cikSummary, Collections.<String>emptyList());
+        printSummaries(pw, "TIK", tikSummary, Collections.<String>emptyList());
+        printSummaries(pw, "UIK", uikSummary, Collections.<String>emptyList());
         pw.close();
 
-        pw = new PrintWriter(Shared.resultsDir + "/" + "checkSummary.log", "UTF-8");
-        p.checkSummaries(pw, cikSummary, tikSummary, uikSummary);
+        pw = new PrintWriter(resultsDir + "/" + "checkSummary.log", "UTF-8");
+        if (check != null) {
+            check.print(pw);
+        }
         pw.close();
     }
 
     private void printSummaries(PrintWriter pw, String label, SummaryData data, List<String> key) {
         pw.printf("**** Summary for %s (aggregate over %s):\n", label, key.toString());
-        Multiset<Metric> set = data.get(key);
-        if (set == null || set.isEmpty()) {
+        MetricVector sums = data.get(key);
+        if (sums == null || sums.isEmpty()) {
             pw.println("No data.");
         } else {
-            for (Metric s : set.elementSet()) {
-                pw.printf("%15d : %s\n", set.count(s), s.getLabel());
+            for (int i = sums.next(0); i >= 0; i = sums.next(i + 1)) {
+                pw.printf("%15d : %s\n", sums.get(i), sums.metric(i).getLabel());
             }
         }
         pw.printf("\n");
         pw.flush();
     }
 
-    private void checkSummaries(PrintWriter pw, SummaryData cik, SummaryData tik, SummaryData uik) {
-        if (Shared.checkSummaries) {
-            pw.println("**** Checking totals between 'CIK' and 'TIK':");
-            summaryCompare(pw, cik, tik);
-            pw.println();
-
-            pw.println("**** Checking totals between 'CIK' and 'UIK':");
-            summaryCompare(pw, cik, uik);
-            pw.println();
-
-            pw.println("**** Checking totals between 'TIK' and 'UIK':");
-            summaryCompare(pw, tik, uik);
-            pw.println();
+    public Parser(String resultsDir) throws FileNotFoundException, UnsupportedEncodingException {
+        this.resultsDir = resultsDir;
+        this.dictionary = new MetricDictionary();
+        this.geographies = Geography.root();
+        this.tables = new EnumMap<Level, TableData>(Level.class);
+        for (Level level : Level.values()) {
+            tables.put(level, new TableData(dictionary));
         }
-        pw.flush();
     }
-    
-    private void summaryCompare(PrintWriter pw, SummaryData summ1, SummaryData summ2) {
-        HashSet<List<String>> geos = new HashSet<List<String>>();
-        geos.addAll(summ1.keys());
-        geos.retainAll(summ2.keys());
-
-        boolean foundAnomalies = false;
-        for (List<String> geo : geos) {
-            Multiset<Metric> val1 = summ1.get(geo);
-            Multiset<Metric> val2 = summ2.get(geo);
-
-            Collection<Metric> metrics = new TreeSet<Metric>();
-            metrics.addAll(val1.elementSet());
-            metrics.addAll(val2.elementSet());
-
-            if (!val1.equals(val2)) {
-                foundAnomalies = true;
-                pw.printf("Found mismatches in aggregates over %s:\n", geo);
-                for (Metric key : metrics) {
-                    Integer v1 = val1.count(key);
-                    Integer v2 = val2.count(key);
-
-                    if (!v1.equals(v2)) {
-                        pw.printf(" {%9d} vs {%9d} [%4.1f%%]: %s\n", v1, v2, (v1 * 100.0 / v2 - 100), key);
-                    }
-                }
-                pw.println();
-            }
-        }
 
-        if (!foundAnomalies) {
-            pw.println("No anomalies in data.");
+    /**
+     * Submits all pages of the level for parsing.
+     * @return page data futures, in store order
+     */
+    private List<Future<TableData>> submitPages(final PageStore store, Level level, ExecutorService pool) throws IOException {
+        List<Future<TableData>> pages = new ArrayList<Future<TableData>>();
+        for (final String dataFile : store.list(level)) {
+            pages.add(pool.submit(new Callable<TableData>() {
+                @Override
+                public TableData call() throws IOException {
+                    TableData data = parse(dataFile, store.read(dataFile));
+                    System.err.printf(".");
+                    return data;
+                }
+            }));
         }
-
-        pw.flush();
+        return pages;
     }
 
-    public Parser() throws FileNotFoundException, UnsupportedEncodingException {
-    }
-
-    private SummaryData parsePages(String dataPath, final String input, String output, boolean parseLast) throws IOException {
-        headerPrinted = false;
-
-        String[] files = new File(dataPath).list(new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-                return name.contains(input);
-            }
-        });
-
-        Arrays.sort(files);
-
-        TableData overall = new TableData();
-
-        System.err.printf("Parsing %s to %s: ", dataPath + input, output);
-        for (String dataFile : files) {
-            System.err.printf(".");
+    /**
+     * Merges parsed pages in store order, so that the result is the same as with sequential parsing.
+     */
+    private void mergePages(Level level, List<Future<TableData>> pages) throws IOException {
+        TableData overall = tables.get(level);
+        for (int i = 0; i < pages.size(); i++) {
+            TableData data;
             try {
-                TableData data = parseUIK(Jsoup.parse(new File(dataPath + "/" + dataFile), "utf8"));
-                overall.merge(data);
+                data = pages.get(i).get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while parsing " + level.getPrefix() + " pages");
+            } catch (ExecutionException e) {
+                Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+                throw Throwables.propagate(e.getCause());
+            }
+            pages.set(i, null);
 
-            } catch (IllegalStateException e) {
-                System.err.printf(" (error in %s: %s) ", dataFile, e.getMessage());
+            if (data != null) {
+                synchronized (overall) {
+                    overall.merge(data);
+                }
             }
         }
+    }
+
+    private SummaryData summarize(Level level, String output, boolean parseLast) throws IOException {
+        headerPrinted = false;
 
+        TableData overall = tables.get(level);
         overall.pruneSubtotals();
 
-        PrintWriter pw = new PrintWriter(new File(Shared.resultsDir + "/" + output), "UTF-8");
+        PrintWriter pw = new PrintWriter(new File(resultsDir + "/" + output), "UTF-8");
         emit(overall, pw);
         pw.flush();
         pw.close();
 
-        System.err.printf("\n");
-
         Set<List<String>> args = new HashSet<List<String>>();
 
         if (Shared.checkSummaries) {
@@ -199,19 +285,13 @@ public class Parser {
             args.add(Collections.<String>emptyList());
         }
 
-        SummaryData summaryData = new SummaryData();
-
-        for (List<String> arg : args) {
-            summaryData.add(arg, overall.aggregate(arg));
-        }
-        
-        return summaryData;
+        return new SummaryData(overall, args);
     }
 
     public static class Metric implements Comparable<Metric> {
 
         private final int index;
-        private final String label;
+        private volatile String label;
 
         public Metric(int index, String label) {
             this.index = index;
@@ -223,6 +303,10 @@ public class Parser {
             return Integer.valueOf(index).compareTo(o.index);
         }
 
+        public int getIndex() {
+            return index;
+        }
+
         public String getLabel() {
             return label;
         }
@@ -250,27 +334,130 @@ public class Parser {
         }
     }
 
+    /**
+     * Subtotals over geography prefixes, computed in one bottom-up pass over the table.
+     * Coordinates are matched ignoring case.
+     */
     public static class SummaryData {
-        
-        private final Map<List<String>, Multiset<Metric>> map;
-        
-        public SummaryData() {
-            this.map = new HashMap<List<String>, Multiset<Metric>>();
+
+        private final Set<List<String>> keys;
+        private final List<Metric> metrics;
+        private final int width;
+        private final int depth;
+        private final Node root;
+
+        /**
+         * @param data table to roll up
+         * @param keys geography prefixes the summary is made for
+         */
+        public SummaryData(TableData data, Set<List<String>> keys) {
+            this.keys = keys;
+            this.metrics = data.getMetrics();
+            this.width = metrics.isEmpty() ? 0 : metrics.get(metrics.size() - 1).getIndex() + 1;
+            this.root = new Node(null, width);
+
+            int maxDepth = 0;
+            for (List<String> key : keys) {
+                maxDepth = Math.max(maxDepth, key.size());
+            }
+            this.depth = maxDepth;
+
+            /*
+             * Раскладываем строки по самым глубоким узлам, потом суммируем снизу вверх.
+             * Узлы создаются после родителей, так что обратный порядок и есть снизу вверх.
+             */
+            List<Node> nodes = new ArrayList<Node>();
+            Map<Geography, Node> resolved = new HashMap<Geography, Node>();
+            for (Map.Entry<Geography, Integer> entry : data.rows.entrySet()) {
+                Geography g = entry.getKey();
+                while (g.size() > depth) {
+                    g = g.getParent();
+                }
+
+                Node node = resolve(g, resolved, nodes);
+                int row = entry.getValue();
+                for (Metric m : metrics) {
+                    node.sums.add(m, data.get(row, m.getIndex()));
+                }
+            }
+
+            for (int i = nodes.size() - 1; i >= 0; i--) {
+                Node node = nodes.get(i);
+                node.parent.sums.add(node.sums);
+            }
         }
-        
-        public void add(List<String> coords, Multiset<Metric> e) {
-            map.put(coords, e);
+
+        private Node resolve(Geography g, Map<Geography, Node> resolved, List<Node> nodes) {
+            if (g.size() == 0) {
+                return root;
+            }
+
+            Node node = resolved.get(g);
+            if (node == null) {
+                Node parent = resolve(g.getParent(), resolved, nodes);
+                String name = normalize(g.getName());
+                node = parent.children.get(name);
+                if (node == null) {
+                    node = new Node(parent, width);
+                    parent.children.put(name, node);
+                    nodes.add(node);
+                }
+                resolved.put(g, node);
+            }
+            return node;
+        }
+
+        /**
+         * Same equivalence as {@link String#equalsIgnoreCase(String)}.
+         */
+        private static String normalize(String s) {
+            char[] cs = s.toCharArray();
+            for (int i = 0; i < cs.length; i++) {
+                cs[i] = Character.toLowerCase(Character.toUpperCase(cs[i]));
+            }
+            return new String(cs);
+        }
+
+        private Node find(List<String> arg) {
+            if (arg.size() > depth) {
+                return null;
+            }
+
+            Node node = root;
+            for (String c : arg) {
+                node = node.children.get(normalize(c));
+                if (node == null) {
+                    return null;
+                }
+            }
+            return node;
         }
 
-        public Multiset<Metric> get(List<String> arg) {
-            return map.get(arg);
+        /**
+         * @return sums over the geography, or null if there is no such geography; owned by summary, do not modify
+         */
+        public MetricVector get(List<String> arg) {
+            Node node = find(arg);
+            return (node != null) ? node.sums : null;
         }
 
         public Set<List<String>> keys() {
-            return map.keySet();
+            return keys;
+        }
+
+        private static class Node {
+            private final Node parent;
+            private final MetricVector sums;
+            private final Map<String, Node> children;
+
+            private Node(Node parent, int width) {
+                this.parent = parent;
+                this.sums = new MetricVector(width);
+                this.children = new HashMap<String, Node>();
+            }
         }
     }
-    
+
     private void emit(TableData data, PrintWriter pw) {
         Pattern pattern = Pattern.compile("[\"]");
 
@@ -279,7 +466,7 @@ public class Parser {
             COORD_MAX = Math.max(COORD_MAX, g.size());
         }
         
-        Collection<Metric> metrics = data.getMetrics();
+        List<Metric> metrics = data.getMetrics();
 
         if (!headerPrinted) {
             headerPrinted = true;
@@ -296,8 +483,9 @@ public class Parser {
             pw.println();
         }
 
-        for (Map.Entry<Geography, Multiset<Metric>> entry : data.asMap().entrySet()) {
-            Geography g = entry.getKey();
+        int[] values = new int[metrics.size()];
+        for (Geography g : data.getGeographies()) {
+            data.getValues(g, metrics, values);
             for (int c = 0; c < COORD_MAX - 1; c++) {
                 pw.print("\"");
                 pw.print(pattern.matcher(g.get(c)).replaceAll(""));
@@ -306,9 +494,9 @@ public class Parser {
             pw.print("\"");
             pw.print(pattern.matcher(g.get(COORD_MAX - 1)).replaceAll(""));
             pw.print("\"");
-            for (Metric k : metrics) {
+            for (int value : values) {
                 pw.print(",");
-                pw.print(entry.getValue().count(k));
+                pw.print(value);
             }
             pw.println();
         }
@@ -316,10 +504,42 @@ public class Parser {
         pw.flush();
     }
 
-    private TableData parseUIK(Document document) {
+    /**
+     * Picks the tables and links from the page DOM, for pages {@link TableScanner} does not recognize.
+     */
+    static TableScanner.Result select(Document document) {
+        TableScanner.Result result = new TableScanner.Result();
+        for (int w = 0; w < 2; w++) {
+            boolean wrapped = (w == 1);
+            String body = wrapped ? "html > body > a > " : "html > body > ";
+
+            for (Element row : document.select(body + "table > tbody > tr > td > table > tbody > tr > td > table > tbody > *")) {
+                result.addDescriptions(wrapped, texts(row.children()));
+            }
+            for (Element row : document.select(body + "table > tbody > tr > td > table > tbody > tr > td > div > table > tbody > tr")) {
+                result.addData(wrapped, texts(row.children()));
+            }
+            for (Element e : document.select(body + "table > tbody > tr > td > a")) {
+                if (e.attr("href").contains("region")) {
+                    result.addLink(wrapped, e.ownText());
+                }
+            }
+        }
+        return result;
+    }
 
-        Elements descripts = document.select("html > body > table > tbody > tr > td > table > tbody > tr > td > table > tbody > *");
-        Elements data = document.select("html > body > table > tbody > tr > td > table > tbody > tr > td > div > table > tbody > tr");
+    private static List<String> texts(Elements elements) {
+        List<String> texts = new ArrayList<String>(elements.size());
+        for (Element e : elements) {
+            texts.add(e.text());
+        }
+        return texts;
+    }
+
+    private TableData parseUIK(TableScanner.Result table) {
+
+        List<List<String>> descripts = table.getDescriptions(false);
+        List<List<String>> data = table.getData(false);
 
         /*
          * Это названия строк
@@ -328,14 +548,13 @@ public class Parser {
         List<Metric> rowSums = new ArrayList<Metric>();
 
         int index = 0;
-        for (Element element : descripts) {
-            Elements tds = element.children();
+        for (List<String> tds : descripts) {
             if (tds.size() >= 3) {
-                String text = tds.get(1).text();
+                String text = tds.get(1);
                 if (!text.contains("ИЗБИРАТЕЛЬНАЯ")) {
-                    rowNames.add(new Metric(index++, text));
+                    rowNames.add(dictionary.intern(index++, text));
                 }
-                rowSums.add(new Metric(index++, tds.get(2).text()));
+                rowSums.add(new Metric(index++, tds.get(2)));
             }
         }
 
@@ -345,8 +564,8 @@ public class Parser {
          */
         if (rowNames.isEmpty()) {
 
-            descripts = document.select("html > body > a > table > tbody > tr > td > table > tbody > tr > td > table > tbody > tr");
-            data = document.select("html > body > a > table > tbody > tr > td > table > tbody > tr > td > div > table > tbody > tr");
+            descripts = table.getDescriptions(true);
+            data = table.getData(true);
 
             /*
              * Это названия строк
@@ -355,14 +574,13 @@ public class Parser {
             rowSums.clear();
 
             index = 0;
-            for (Element element : descripts) {
-                Elements tds = element.children();
+            for (List<String> tds : descripts) {
                 if (tds.size() >= 3) {
-                    String text = tds.get(1).text();
+                    String text = tds.get(1);
                     if (!text.contains("ИЗБИРАТЕЛЬНАЯ")) {
-                        rowNames.add(new Metric(index++, text));
+                        rowNames.add(dictionary.intern(index++, text));
                     }
-                    rowSums.add(new Metric(index++, tds.get(2).text()));
+                    rowSums.add(new Metric(index++, tds.get(2)));
                 }
             }
         }
@@ -371,45 +589,27 @@ public class Parser {
          * Нипалучилось.
          */
         if (rowNames.isEmpty()) {
-            System.err.println(descripts.toString());
             throw new IllegalStateException("Row names are empty");
         }
 
         /**
          * Строим координаты УИКа: они указаны линками вверху страницы.
-         * Все координаты должны поместиться в $COORD_MAX
          */
-        final int COORD_MAX = 5;
-
-        List<String> coords = new ArrayList<String>(COORD_MAX);
-        Elements links = document.select("html > body > table > tbody > tr > td > a");
-
-        for (Element e : links) {
-            if (e.attr("href").contains("region")) {
-                coords.add(e.ownText());
-            }
-        }
-
-        if (coords.size() == 0) {
+        List<String> coords = table.getLinks(false);
+        if (coords.isEmpty()) {
             // second try with the link
-            links = document.select("html > body > a > table > tbody > tr > td > a");
-
-            for (Element e : links) {
-                if (e.attr("href").contains("region")) {
-                    coords.add(e.ownText());
-                }
-            }
+            coords = table.getLinks(true);
 
-            if (coords.size() == 0) {
-                throw new IllegalStateException("Got some wrong coordinates: " + links);
+            if (coords.isEmpty()) {
+                throw new IllegalStateException("Got some wrong coordinates: no region links");
             }
         }
-        Geography g = new Geography(coords);
+        Geography g = geographies.path(coords);
 
         /**
          * Данные: Map<"ИмяУИКа", Map<"Название строчки", число>>
          */
-        TableData allData = new TableData();
+        TableData allData = new TableData(dictionary);
 
         /**
          * Нет данных, только суммы, попробуем их отпарсить.
@@ -421,7 +621,7 @@ public class Parser {
                 // спасибо деду за строчки типа "125 (35%)"!
                 if (!text.trim().isEmpty()) {
                     int value = Integer.valueOf(text.split(" ")[0]);
-                    allData.add(g.aid("Сумма"), rowNames.get(i), value);
+                    allData.add(g.child("Сумма"), rowNames.get(i), value);
                 }
             }
         } else {
@@ -430,27 +630,29 @@ public class Parser {
              * Это названия столбцов в таблице.
              * Обычно это названия УИКов.
              */
-            List<String> uikNames = new ArrayList<String>();
-            for (Element element : data.get(0).children()) {
-                uikNames.add(element.text());
-            }
+            List<String> uikNames = data.get(0);
+            Geography[] uiks = new Geography[uikNames.size()];
 
             /**
              * Построчно парсим и пытаемся преобразовать в числа.
              */
             int curName = 0;
             for (int c = 1; c < data.size(); c++) {
-                Elements children = data.get(c).children();
+                List<String> children = data.get(c);
 
                 boolean excCaught = false;
                 for (int j = 0; j < children.size(); j++) {
-                    String text = children.get(j).text();
+                    String text = children.get(j);
                     try {
                         // спасибо деду за строчки типа "125 (35%)"!
                         int value = Integer.valueOf(text.split(" ")[0]);
 
-                        String uikName = uikNames.get(j);
-                        allData.add(g.aid(uikName), rowNames.get(curName), value);
+                        Geography uik = uiks[j];
+                        if (uik == null) {
+                            uik = g.child(uikNames.get(j));
+                            uiks[j] = uik;
+                        }
+                        allData.add(uik, rowNames.get(curName), value);
 
                     } catch (NumberFormatException _) {
                         excCaught = true;
@@ -468,88 +670,185 @@ public class Parser {
         return allData;
     }
 
+    /**
+     * Interns the metrics: one instance per row index, shared by all tables.
+     * Row indices are small, so metric index doubles as column id in {@link TableData}.
+     */
+    public static class MetricDictionary {
+
+        private Metric[] metrics;
+
+        public MetricDictionary() {
+            this.metrics = new Metric[64];
+        }
+
+        /**
+         * @return interned metric for the index; of the different labels the smallest one wins,
+         * so the label does not depend on the order pages are parsed in
+         */
+        public synchronized Metric intern(int index, String label) {
+            if (index >= metrics.length) {
+                metrics = Arrays.copyOf(metrics, Math.max(index + 1, metrics.length * 2));
+            }
+            Metric m = metrics[index];
+            if (m == null) {
+                m = new Metric(index, label);
+                metrics[index] = m;
+            } else if (label.compareTo(m.label) < 0) {
+                m.label = label;
+            }
+            return m;
+        }
+
+        public synchronized Metric get(int index) {
+            return metrics[index];
+        }
+    }
+
+    /**
+     * Columnar table: geography gets the row id, metric gets the column,
+     * values are kept in primitive columns. Zero value means "no value".
+     */
     public static class TableData {
 
-        public final Map<Geography, Multiset<Metric>> data;
-        
-        public TableData() {
-            this.data = new TreeMap<Geography, Multiset<Metric>>();
+        private final MetricDictionary dictionary;
+        private final SortedMap<Geography, Integer> rows;
+        private int rowCount;
+        private int[][] columns;
+
+        public TableData(MetricDictionary dictionary) {
+            this.dictionary = dictionary;
+            this.rows = new TreeMap<Geography, Integer>();
+            this.columns = new int[0][];
         }
 
         public void add(Geography g, Metric label, int value) {
-            Multiset<Metric> map = data.get(g);
-            if (map == null) {
-                map = new SortedMultiset<Metric>();
-                data.put(g, map);
-            }
+            set(row(g), label.getIndex(), value);
+        }
 
-            map.setCount(label, value);
+        private int row(Geography g) {
+            Integer row = rows.get(g);
+            if (row == null) {
+                row = rowCount++;
+                rows.put(g, row);
+            }
+            return row;
         }
 
-        public Collection<Geography> getGeographies() {
-            return data.keySet();
+        private void set(int row, int metric, int value) {
+            if (metric >= columns.length) {
+                columns = Arrays.copyOf(columns, metric + 1);
+            }
+            int[] column = columns[metric];
+            if (column == null) {
+                if (value == 0) {
+                    return;
+                }
+                column = new int[Math.max(16, rowCount)];
+                columns[metric] = column;
+            } else if (row >= column.length) {
+                column = Arrays.copyOf(column, Math.max(row + 1, column.length * 2));
+                columns[metric] = column;
+            }
+            column[row] = value;
         }
 
-        public Collection<Metric> getMetrics() {
-            Set<Metric> metrics = new TreeSet<Metric>();
-            for (Multiset<Metric> set : data.values()) {
-                metrics.addAll(set.elementSet());
+        private int get(int row, int metric) {
+            if (metric >= columns.length) {
+                return 0;
             }
-            return metrics;
+            int[] column = columns[metric];
+            return (column != null && row < column.length) ? column[row] : 0;
         }
 
-        public Map<Geography, Multiset<Metric>> asMap() {
-            return data;
+        public Collection<Geography> getGeographies() {
+            return rows.keySet();
         }
 
-        public void merge(TableData data) {
-            for (Map.Entry<Geography, Multiset<Metric>> entry : data.asMap().entrySet()) {
-                Multiset<Metric> set = entry.getValue();
-                for (Metric s : set.elementSet()) {
-                    add(entry.getKey(), s, set.count(s));
+        /**
+         * @return metrics having values in any row, in index order
+         */
+        public List<Metric> getMetrics() {
+            List<Metric> metrics = new ArrayList<Metric>();
+            for (int m = 0; m < columns.length; m++) {
+                int[] column = columns[m];
+                if (column == null) {
+                    continue;
+                }
+                for (int row : rows.values()) {
+                    if (row < column.length && column[row] != 0) {
+                        metrics.add(dictionary.get(m));
+                        break;
+                    }
                 }
             }
+            return metrics;
         }
 
-        public Multiset<Metric> aggregate(List<String> coords) {
-            Multiset<Metric> result = new SortedMultiset<Metric>();
-            for (Map.Entry<Geography, Multiset<Metric>> entry: data.entrySet()) {
-                Geography g = entry.getKey();
-                
-                boolean match = true;
-                for(int c = 0; c < coords.size(); c++) {
-                    match &= g.get(c).equalsIgnoreCase(coords.get(c));
-                }
-                
-                if (match) {
-                    Multiset<Metric> set = entry.getValue();
-                    for (Metric k : set.elementSet()) {
-                        result.add(k, set.count(k));
+        /**
+         * Reads the row values for given metrics into dst.
+         */
+        public void getValues(Geography g, List<Metric> metrics, int[] dst) {
+            Integer row = rows.get(g);
+            for (int i = 0; i < metrics.size(); i++) {
+                dst[i] = (row != null) ? get(row, metrics.get(i).getIndex()) : 0;
+            }
+        }
+
+        public void merge(TableData data) {
+            for (Map.Entry<Geography, Integer> entry : data.rows.entrySet()) {
+                int src = entry.getValue();
+                int dst = -1;
+                for (int m = 0; m < data.columns.length; m++) {
+                    int value = data.get(src, m);
+                    if (value != 0) {
+                        if (dst < 0) {
+                            dst = row(entry.getKey());
+                        }
+                        set(dst, m, value);
                     }
-                    
                 }
             }
-            return result;
         }
 
         public void pruneSubtotals() {
             List<Geography> toPrune = new ArrayList<Geography>();
 
             int maxSize = 0;
-            for (Geography g : data.keySet()) {
+            for (Geography g : rows.keySet()) {
                 maxSize = Math.max(g.size(), maxSize);
             }
 
-            for (Geography g : data.keySet()) {
+            for (Geography g : rows.keySet()) {
                 if (g.size() != maxSize) {
                     toPrune.add(g);
                 }
             }
 
             for (Geography g : toPrune) {
-                data.remove(g);
+                rows.remove(g);
+            }
+
+            /**
+             * Уплотняем столбцы: остаются только значения оставшихся строк, строки нумеруются заново.
+             */
+            int[][] compacted = new int[columns.length][];
+            int dst = 0;
+            for (Map.Entry<Geography, Integer> entry : rows.entrySet()) {
+                int src = entry.getValue();
+                for (int m = 0; m < columns.length; m++) {
+                    int value = get(src, m);
+                    if (value != 0) {
+                        if (compacted[m] == null) {
+                            compacted[m] = new int[rows.size()];
+                        }
+                        compacted[m][dst] = value;
+                    }
+                }
+                entry.setValue(dst++);
             }
+            columns = compacted;
+            rowCount = dst;
         }
     }
-
 }
@@ -0,0 +1,109 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package net.shipilev.elections.cikrf;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token-bucket rate limiter, shared by all network threads.
+ * Each host gets its own bucket: regional sub-domains are the separate servers.
+ */
+public class RateLimiter {
+
+    private final double rate;
+    private final int burst;
+    private final ConcurrentMap<String, Bucket> buckets;
+
+    /**
+     * @param rate requests per second for each host; non-positive means no limit
+     * @param burst number of requests which are allowed to go back-to-back
+     */
+    public RateLimiter(double rate, int burst) {
+        this.rate = rate;
+        this.burst = Math.max(1, burst);
+        this.buckets = new ConcurrentHashMap<String, Bucket>();
+    }
+
+    /**
+     * Blocks until the request to given URL is allowed.
+     */
+    public void acquire(String url) throws InterruptedException {
+        if (rate <= 0) {
+            return;
+        }
+
+        String host = hostOf(url);
+        Bucket bucket = buckets.get(host);
+        if (bucket == null) {
+            Bucket newBucket = new Bucket(rate, burst);
+            bucket = buckets.putIfAbsent(host, newBucket);
+            if (bucket == null) {
+                bucket = newBucket;
+            }
+        }
+
+        long wait = bucket.reserve();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    public static String hostOf(String url) {
+        try {
+            return new URL(url).getHost().toLowerCase();
+        } catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    private static class Bucket {
+        private final double nanosPerToken;
+        private final int capacity;
+        private double tokens;
+        private long lastRefill;
+
+        public Bucket(double rate, int capacity) {
+            this.nanosPerToken = TimeUnit.SECONDS.toNanos(1) / rate;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.lastRefill = System.nanoTime();
+        }
+
+        /**
+         * Takes the token, possibly in advance.
+         * Tokens could go negative, then the callers are queued up one after another.
+         * @return nanoseconds to wait before the token is actually available
+         */
+        public synchronized long reserve() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) / nanosPerToken);
+            lastRefill = now;
+
+            tokens -= 1;
+            if (tokens >= 0) {
+                return 0;
+            } else {
+                return (long) (-tokens * nanosPerToken);
+            }
+        }
+    }
+
+}
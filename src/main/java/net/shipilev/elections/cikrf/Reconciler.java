@@ -0,0 +1,209 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package net.shipilev.elections.cikrf;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Cross-checks the totals between levels: sums over the same geography should match on all of them.
+ * All level pairs are compared in one sweep over geographies, split between threads.
+ * Mismatches are found once, and then can be printed to any number of writers.
+ */
+public class Reconciler {
+
+    private static final int CHUNK = 1024;
+
+    private final long tolerance;
+    private final double relTolerance;
+
+    /**
+     * @param tolerance absolute difference which is not reported
+     * @param relTolerance difference which is not reported, in percent of the larger value
+     */
+    public Reconciler(long tolerance, double relTolerance) {
+        this.tolerance = tolerance;
+        this.relTolerance = relTolerance;
+    }
+
+    /**
+     * @param labels level labels
+     * @param levels level summaries, coarse to fine
+     */
+    public Result reconcile(List<String> labels, final List<Parser.SummaryData> levels) throws InterruptedIOException {
+        Set<List<String>> allKeys = new HashSet<List<String>>();
+        for (Parser.SummaryData level : levels) {
+            allKeys.addAll(level.keys());
+        }
+        final List<List<String>> keys = new ArrayList<List<String>>(allKeys);
+        Collections.sort(keys, KEY_ORDER);
+
+        List<Mismatch> mismatches = new ArrayList<Mismatch>();
+        if (keys.size() <= CHUNK) {
+            mismatches.addAll(sweep(levels, keys));
+        } else {
+            int cpus = Runtime.getRuntime().availableProcessors();
+            ExecutorService pool = Executors.newFixedThreadPool(cpus,
+                    new ThreadFactoryBuilder().setNameFormat("reconcile-%d").setDaemon(true).build());
+            try {
+                List<Future<List<Mismatch>>> chunks = new ArrayList<Future<List<Mismatch>>>();
+                for (int start = 0; start < keys.size(); start += CHUNK) {
+                    final List<List<String>> chunk = keys.subList(start, Math.min(keys.size(), start + CHUNK));
+                    chunks.add(pool.submit(new Callable<List<Mismatch>>() {
+                        @Override
+                        public List<Mismatch> call() {
+                            return sweep(levels, chunk);
+                        }
+                    }));
+                }
+                for (Future<List<Mismatch>> f : chunks) {
+                    mismatches.addAll(f.get());
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while checking summaries");
+            } catch (ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        return new Result(labels, mismatches);
+    }
+
+    private List<Mismatch> sweep(List<Parser.SummaryData> levels, List<List<String>> keys) {
+        List<Mismatch> result = new ArrayList<Mismatch>();
+        MetricVector[] sums = new MetricVector[levels.size()];
+        for (List<String> key : keys) {
+            for (int l = 0; l < levels.size(); l++) {
+                Parser.SummaryData level = levels.get(l);
+                sums[l] = level.keys().contains(key) ? level.get(key) : null;
+            }
+
+            for (int l1 = 0; l1 < levels.size(); l1++) {
+                for (int l2 = l1 + 1; l2 < levels.size(); l2++) {
+                    if (sums[l1] != null && sums[l2] != null) {
+                        Mismatch m = compare(l1, l2, key, sums[l1], sums[l2]);
+                        if (m != null) {
+                            result.add(m);
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private Mismatch compare(int l1, int l2, List<String> key, MetricVector v1, MetricVector v2) {
+        Mismatch m = null;
+        for (int i = 0; i < Math.max(v1.width(), v2.width()); i++) {
+            long diff = Math.abs(v1.get(i) - v2.get(i));
+            if (diff > tolerance && diff > Math.max(Math.abs(v1.get(i)), Math.abs(v2.get(i))) * relTolerance / 100) {
+                if (m == null) {
+                    m = new Mismatch(l1, l2, key, v1, v2);
+                }
+                m.metrics.add((v1.metric(i) != null) ? v1.metric(i) : v2.metric(i));
+            }
+        }
+        return m;
+    }
+
+    private static final Comparator<List<String>> KEY_ORDER = new Comparator<List<String>>() {
+        @Override
+        public int compare(List<String> o1, List<String> o2) {
+            for (int c = 0; c < Math.min(o1.size(), o2.size()); c++) {
+                int r = o1.get(c).compareTo(o2.get(c));
+                if (r != 0) {
+                    return r;
+                }
+            }
+            return o1.size() - o2.size();
+        }
+    };
+
+    private static class Mismatch {
+        private final int level1;
+        private final int level2;
+        private final List<String> key;
+        private final MetricVector sums1;
+        private final MetricVector sums2;
+        private final List<Parser.Metric> metrics;
+
+        private Mismatch(int level1, int level2, List<String> key, MetricVector sums1, MetricVector sums2) {
+            this.level1 = level1;
+            this.level2 = level2;
+            this.key = key;
+            this.sums1 = sums1;
+            this.sums2 = sums2;
+            this.metrics = new ArrayList<Parser.Metric>();
+        }
+    }
+
+    public static class Result {
+        private final List<String> labels;
+        private final List<Mismatch> mismatches;
+
+        private Result(List<String> labels, List<Mismatch> mismatches) {
+            this.labels = labels;
+            this.mismatches = mismatches;
+        }
+
+        public void print(PrintWriter pw) {
+            for (int l1 = 0; l1 < labels.size(); l1++) {
+                for (int l2 = l1 + 1; l2 < labels.size(); l2++) {
+                    pw.printf("**** Checking totals between '%s' and '%s':\n", labels.get(l1), labels.get(l2));
+
+                    boolean foundAnomalies = false;
+                    for (Mismatch m : mismatches) {
+                        if (m.level1 != l1 || m.level2 != l2) {
+                            continue;
+                        }
+                        foundAnomalies = true;
+                        pw.printf("Found mismatches in aggregates over %s:\n", m.key);
+                        for (Parser.Metric metric : m.metrics) {
+                            long v1 = m.sums1.get(metric.getIndex());
+                            long v2 = m.sums2.get(metric.getIndex());
+                            pw.printf(" {%9d} vs {%9d} [%4.1f%%]: %s\n", v1, v2, (v1 * 100.0 / v2 - 100), metric);
+                        }
+                        pw.println();
+                    }
+
+                    if (!foundAnomalies) {
+                        pw.println("No anomalies in data.");
+                    }
+                    pw.println();
+                }
+            }
+            pw.flush();
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package net.shipilev.elections.cikrf;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retry policy for page downloads: exponential backoff with full jitter.
+ * Server-provided Retry-After takes precedence when it asks to wait longer.
+ */
+public class RetryPolicy {
+
+    private static final long BASE_DELAY = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long MAX_DELAY = TimeUnit.SECONDS.toNanos(60);
+
+    private final int maxAttempts;
+    private final Random random;
+
+    public RetryPolicy(int maxAttempts) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.random = new Random();
+    }
+
+    /**
+     * @param attempt number of attempts made so far
+     * @param error last error
+     * @return true, if another attempt should be made
+     */
+    public boolean shouldRetry(int attempt, Exception error) {
+        return attempt < maxAttempts && isTransient(error);
+    }
+
+    /**
+     * @param error download error
+     * @return true, if error is likely to go away: network errors, server errors and throttling
+     */
+    public boolean isTransient(Exception error) {
+        if (error instanceof HttpEngine.StatusException) {
+            int code = ((HttpEngine.StatusException) error).getCode();
+            return code >= 500 || code == 408 || code == 429;
+        }
+        return true;
+    }
+
+    /**
+     * @param attempt number of attempts made so far
+     * @param error last error
+     * @return nanoseconds to wait before the next attempt
+     */
+    public long delayNanos(int attempt, Exception error) {
+        long cap = BASE_DELAY << Math.min(attempt, 20);
+        if (cap <= 0 || cap > MAX_DELAY) {
+            cap = MAX_DELAY;
+        }
+
+        long delay;
+        synchronized (random) {
+            delay = (long) (random.nextDouble() * cap);
+        }
+
+        if (error instanceof HttpEngine.StatusException) {
+            long retryAfter = ((HttpEngine.StatusException) error).getRetryAfterNanos();
+            delay = Math.max(delay, retryAfter);
+        }
+
+        return delay;
+    }
+
+    /**
+     * Small random delay, to spread the requests which were waiting for the same event.
+     */
+    public long jitterNanos() {
+        synchronized (random) {
+            return (long) (random.nextDouble() * BASE_DELAY);
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package net.shipilev.elections.cikrf;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only segmented page store.
+ *
+ * Pages are compressed one by one and appended to the segment files; the index keeps
+ * URL, level, segment, offset and length for every page. Later index entries override
+ * the earlier ones for the same URL, so incremental runs just append the changed pages.
+ */
+public class SegmentStore extends PageStore {
+
+    public static final String INDEX_NAME = "pages.idx";
+
+    private final File dir;
+    private final Map<String, Record> records;
+    private final Segments segments;
+
+    private Writer index;
+
+    public static boolean exists(String dir) {
+        return new File(dir, INDEX_NAME).exists();
+    }
+
+    public SegmentStore(String dir) throws IOException {
+        this.dir = new File(dir);
+        this.dir.mkdirs();
+        this.records = new LinkedHashMap<String, Record>();
+
+        int lastSegment = 0;
+
+        File indexFile = new File(this.dir, INDEX_NAME);
+        if (indexFile.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length != 7) {
+                        // torn write at the crash, skip
+                        continue;
+                    }
+                    String url = fields[6];
+                    if ("P".equals(fields[0])) {
+                        Segments.Location loc = Segments.Location.parse(fields[2], fields[3], fields[4], fields[5]);
+                        records.remove(url);
+                        records.put(url, new Record(Level.valueOf(fields[1]), url, loc));
+                        lastSegment = Math.max(lastSegment, loc.getSegment());
+                    } else if ("R".equals(fields[0])) {
+                        records.remove(url);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        this.segments = new Segments(this.dir, lastSegment);
+    }
+
+    private void writeIndex(String line) throws IOException {
+        if (index == null) {
+            index = new OutputStreamWriter(new FileOutputStream(new File(dir, INDEX_NAME), true), "UTF-8");
+        }
+        index.write(line);
+        index.flush();
+    }
+
+    @Override
+    public void put(Level level, String url, byte[] body) throws IOException {
+        Segments.Location loc = segments.append(body);
+        putRecord(level, url, loc);
+    }
+
+    private synchronized void putRecord(Level level, String url, Segments.Location loc) throws IOException {
+        writeIndex("P\t" + level.name() + "\t" + loc + "\t" + url + "\n");
+
+        records.remove(url);
+        records.put(url, new Record(level, url, loc));
+    }
+
+    @Override
+    public synchronized boolean contains(Level level, String url) {
+        Record r = records.get(url);
+        return r != null && r.level == level;
+    }
+
+    @Override
+    public synchronized byte[] get(Level level, String url) throws IOException {
+        Record r = records.get(url);
+        if (r == null || r.level != level) {
+            return null;
+        }
+        return segments.read(r.location);
+    }
+
+    @Override
+    public synchronized void remove(Level level, String url) throws IOException {
+        if (records.remove(url) != null) {
+            writeIndex("R\t" + level.name() + "\t-1\t0\t0\t0\t" + url + "\n");
+        }
+    }
+
+    @Override
+    public synchronized List<String> list(Level level) {
+        List<String> result = new ArrayList<String>();
+        for (Record r : records.values()) {
+            if (r.level == level) {
+                result.add(r.url);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public byte[] read(String name) throws IOException {
+        Record r;
+        synchronized (this) {
+            r = records.get(name);
+        }
+        if (r == null) {
+            throw new IOException("No page in store: " + name);
+        }
+        return segments.read(r.location);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (index != null) {
+            index.close();
+            index = null;
+        }
+        segments.close();
+    }
+
+    private static class Record {
+        private final Level level;
+        private final String url;
+        private final Segments.Location location;
+
+        private Record(Level level, String url, Segments.Location location) {
+            this.level = level;
+            this.url = url;
+            this.location = location;
+        }
+    }
+
+}
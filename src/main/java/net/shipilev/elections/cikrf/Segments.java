@@ -0,0 +1,215 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package net.shipilev.elections.cikrf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Append-only segment files with individually compressed records.
+ * Callers keep the record locations in their own indexes.
+ * Segments are memory-mapped for reading.
+ */
+public class Segments {
+
+    private static final long SEGMENT_LIMIT = 256L * 1024 * 1024;
+
+    private final File dir;
+    private final Map<Integer, MappedByteBuffer> mapped;
+
+    private FileOutputStream segment;
+    private int segmentId;
+    private long segmentSize;
+
+    /**
+     * @param dir segments dir
+     * @param lastSegment last segment known to the index
+     */
+    public Segments(File dir, int lastSegment) {
+        this.dir = dir;
+        this.dir.mkdirs();
+        this.segmentId = lastSegment;
+        this.mapped = new HashMap<Integer, MappedByteBuffer>();
+    }
+
+    private static String segmentName(int id) {
+        return String.format("segment-%05d.dat", id);
+    }
+
+    /**
+     * Compresses and appends the record.
+     * Compression is done outside the lock, so that concurrent writers only serialize on the file append.
+     * @return record location
+     */
+    public Location append(byte[] body) throws IOException {
+        return appendCompressed(compress(body), body.length);
+    }
+
+    public static byte[] compress(byte[] body) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(body.length / 4);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DeflaterOutputStream dos = new DeflaterOutputStream(bos, deflater);
+            dos.write(body);
+            dos.close();
+        } finally {
+            deflater.end();
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Appends the record compressed with {@link #compress(byte[])}.
+     * @param compressed compressed record
+     * @param rawLength length of the record before compression
+     * @return record location
+     */
+    public synchronized Location appendCompressed(byte[] compressed, int rawLength) throws IOException {
+        if (segment != null && segmentSize + compressed.length > SEGMENT_LIMIT) {
+            segment.close();
+            segment = null;
+            segmentId++;
+        }
+
+        if (segment == null) {
+            File file = new File(dir, segmentName(segmentId));
+            segmentSize = file.length();
+            segment = new FileOutputStream(file, true);
+        }
+
+        Location loc = new Location(segmentId, segmentSize, compressed.length, rawLength);
+        segment.write(compressed);
+        segmentSize += compressed.length;
+        return loc;
+    }
+
+    /**
+     * Reads and decompresses the record.
+     * Decompression is done outside the lock, so that concurrent readers only serialize on the copy.
+     */
+    public byte[] read(Location loc) throws IOException {
+        return decompress(readCompressed(loc), loc);
+    }
+
+    private synchronized byte[] readCompressed(Location loc) throws IOException {
+        MappedByteBuffer buf = mapped.get(loc.getSegment());
+        if (buf == null || buf.capacity() < loc.getOffset() + loc.getLength()) {
+            RandomAccessFile raf = new RandomAccessFile(new File(dir, segmentName(loc.getSegment())), "r");
+            try {
+                buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+            mapped.put(loc.getSegment(), buf);
+        }
+
+        byte[] compressed = new byte[loc.getLength()];
+        ByteBuffer slice = buf.duplicate();
+        slice.position((int) loc.getOffset());
+        slice.get(compressed);
+        return compressed;
+    }
+
+    private static byte[] decompress(byte[] compressed, Location loc) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] body = new byte[loc.getRawLength()];
+            int n = 0;
+            while (n < body.length && !inflater.finished()) {
+                int count = inflater.inflate(body, n, body.length - n);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += count;
+            }
+            if (n != body.length) {
+                throw new IOException("Corrupted record at " + loc);
+            }
+            return body;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted record at " + loc + ", " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (segment != null) {
+            segment.close();
+            segment = null;
+        }
+        mapped.clear();
+    }
+
+    public static class Location {
+        private final int segment;
+        private final long offset;
+        private final int length;
+        private final int rawLength;
+
+        public Location(int segment, long offset, int length, int rawLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.rawLength = rawLength;
+        }
+
+        /**
+         * Parses the location written by {@link #toString()}.
+         */
+        public static Location parse(String segment, String offset, String length, String rawLength) {
+            return new Location(Integer.parseInt(segment), Long.parseLong(offset), Integer.parseInt(length), Integer.parseInt(rawLength));
+        }
+
+        public int getSegment() {
+            return segment;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public int getRawLength() {
+            return rawLength;
+        }
+
+        /**
+         * @return tab-separated segment, offset, length and raw length
+         */
+        @Override
+        public String toString() {
+            return segment + "\t" + offset + "\t" + length + "\t" + rawLength;
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package net.shipilev.elections.cikrf;
+
+import java.net.CookieHandler;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the sessions with CIK hosts, shared by all network threads.
+ *
+ * CIK sometimes answers with the form asking to POST the "key" back, and then remembers
+ * the client by cookie. Cookies are kept for every host, and the handshake is done once
+ * per host and challenge, instead of once per page and thread.
+ */
+public class SessionManager {
+
+    private static final byte[][] KEY_MARKERS = {
+            "name=\"key\"".getBytes(),
+            "name='key'".getBytes(),
+            "name=key".getBytes(),
+    };
+
+    private final ConcurrentMap<String, HostSession> sessions;
+
+    public SessionManager() {
+        this.sessions = new ConcurrentHashMap<String, HostSession>();
+        CookieHandler.setDefault(new CookieManager(null, CookiePolicy.ACCEPT_ALL));
+    }
+
+    public HostSession forUrl(String url) {
+        String host = RateLimiter.hostOf(url);
+        HostSession session = sessions.get(host);
+        if (session == null) {
+            HostSession newSession = new HostSession();
+            session = sessions.putIfAbsent(host, newSession);
+            if (session == null) {
+                session = newSession;
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Checks if the page is the "key" challenge.
+     * Regular pages are rejected by the cheap byte search, without scanning the page.
+     * @return key to POST back; null, if page is not a challenge
+     */
+    public static Integer challengeKey(byte[] body) {
+        for (byte[] marker : KEY_MARKERS) {
+            if (indexOf(body, marker) >= 0) {
+                return PageScanner.scan(body).getLoginKey();
+            }
+        }
+        return null;
+    }
+
+    private static int indexOf(byte[] buf, byte[] pattern) {
+        outer:
+        for (int i = 0; i + pattern.length <= buf.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                int b = buf[i + j];
+                if (b >= 'A' && b <= 'Z') {
+                    b += 'a' - 'A';
+                }
+                if (b != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Handshake state for a host.
+     * Generation is bumped on each completed handshake: the thread which saw the challenge
+     * before the handshake completed should just retry, not repeat the handshake.
+     * Handshakes are done under the session lock.
+     */
+    public static class HostSession {
+        private final Lock lock = new ReentrantLock();
+        private volatile long generation;
+
+        /**
+         * Session lock. Explicit lock, not monitor: handshake does network I/O, and blocking
+         * under monitor pins the virtual thread to its carrier.
+         */
+        public Lock getLock() {
+            return lock;
+        }
+
+        public long getGeneration() {
+            return generation;
+        }
+
+        /**
+         * Records the completed handshake. Callers should hold the session lock.
+         */
+        public void renewed() {
+            generation++;
+        }
+    }
+
+}
@@ -20,37 +20,49 @@ import joptsimple.OptionException;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 import joptsimple.OptionSpec;
-import org.jsoup.Jsoup;
-import org.jsoup.helper.HttpConnection;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
-
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
+
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.concurrent.TimeUnit;
-import java.util.zip.GZIPInputStream;
+import java.util.List;
 
 public class Shared {
 
     public static String rootURL;
     public static String pageDir;
+    public static String pageFormat;
+    public static String archiveDir;
+    public static String subtreeHints;
     public static String resultsDir;
     public static Integer threads;
+    public static Integer minConcurrency;
+    public static boolean virtualThreads;
     public static Integer wideLimit;
     public static Integer thinkTime;
+    public static Double rateLimit;
+    public static Integer burst;
+    public static Integer attempts;
+    public static RateLimiter limiter;
+    public static HttpEngine engine;
+    public static Metrics metrics;
+    public static Integer metricsPeriod;
     public static boolean checkSummaries;
+    public static Long checkTolerance;
+    public static Double checkRelTolerance;
+    public static boolean incremental;
+    public static boolean parseInline;
+    public static boolean discardPages;
+    public static List<String> elections;
+    public static String dataDir;
+    public static Integer period;
 
     public static void init(String[] args) throws IOException {
         OptionParser parser = new OptionParser() {
             {
                 accepts("h", "Print help and exit");
-                accepts("c", "Check summaries (long and tedious)");
+                accepts("c", "Check summaries for every geography prefix");
+                accepts("i", "Incremental crawl: reuse the page dir from previous run, download and write only changed pages");
+                accepts("x", "Parse pages while downloading, and write CSVs to the result dir right after the crawl. Spider only.");
+                accepts("d", "Discard pages after parsing, do not store them. Only with -x, and interrupted crawl cannot be resumed then.");
+                accepts("V", "Run each request on its own virtual thread (JDK 21+). Then -t only bounds the number of in-flight requests, and can be set to thousands.");
             }
         };
 
@@ -63,22 +75,70 @@ public class Shared {
                 .withRequiredArg().describedAs("DIR").ofType(String.class)
                 .defaultsTo("download/");
 
+        OptionSpec<String> oPageFormat = parser.accepts("f", "Page store format for spider: '" + PageStore.FORMAT_SEGMENTS + "' (compressed and indexed) or '" + PageStore.FORMAT_FILES + "' (one file per page). Parser detects the format by itself.")
+                .withRequiredArg().describedAs("format").ofType(String.class)
+                .defaultsTo(PageStore.FORMAT_SEGMENTS);
+
+        OptionSpec<String> oArchiveDir = parser.accepts("a", "Content-addressed page archive, shared between snapshots. Spider stores pages there, and keeps only the snapshot manifest in page dir. Overrides -f.")
+                .withRequiredArg().describedAs("DIR").ofType(String.class);
+
+        OptionSpec<String> oSubtreeHints = parser.accepts("H", "Subtree sizes from the previous crawl, for downloading the largest regions first. Spider updates the file after the crawl. Default is " + SubtreeSizes.FILE_NAME + " in page dir.")
+                .withRequiredArg().describedAs("file").ofType(String.class);
+
         OptionSpec<String> oResultsDir = parser.accepts("o", "Result output dir. Parsers will write out CSVs there.")
                 .withRequiredArg().describedAs("DIR").ofType(String.class)
                 .defaultsTo("results/");
 
-        OptionSpec<Integer> oThreads = parser.accepts("t", "Number of network threads.")
+        OptionSpec<Integer> oThreads = parser.accepts("t", "Number of network threads, also the maximal number of in-flight requests to the same host.")
                 .withRequiredArg().describedAs("threads").ofType(Integer.class)
                 .defaultsTo(1);
 
-        OptionSpec<Integer> oThinkTime = parser.accepts("s", "Time to sleep between network requests.")
+        OptionSpec<Integer> oMinConcurrency = parser.accepts("m", "Minimal number of in-flight requests to the same host. Spider adapts the concurrency between this and -t, watching the host latency and errors.")
+                .withRequiredArg().describedAs("reqs").ofType(Integer.class)
+                .defaultsTo(1);
+
+        OptionSpec<Integer> oThinkTime = parser.accepts("s", "Minimal time between network requests to the same host. Ignored if -l is set.")
                 .withRequiredArg().describedAs("msecs").ofType(Integer.class)
                 .defaultsTo(200);
 
+        OptionSpec<Double> oRateLimit = parser.accepts("l", "Rate limit for network requests to the same host, shared by all threads.")
+                .withRequiredArg().describedAs("reqs/sec").ofType(Double.class);
+
+        OptionSpec<Integer> oBurst = parser.accepts("b", "Number of network requests allowed to go back-to-back to the same host.")
+                .withRequiredArg().describedAs("reqs").ofType(Integer.class)
+                .defaultsTo(1);
+
+        OptionSpec<Integer> oAttempts = parser.accepts("n", "Maximal number of attempts to download the page. Failed attempts are retried with exponential backoff.")
+                .withRequiredArg().describedAs("attempts").ofType(Integer.class)
+                .defaultsTo(10);
+
+        OptionSpec<Integer> oMetricsPeriod = parser.accepts("e", "Period for writing crawl metrics into page dir, as " + Metrics.JSON_NAME + " and " + Metrics.PROMETHEUS_NAME + ". Zero disables metrics export.")
+                .withRequiredArg().describedAs("secs").ofType(Integer.class)
+                .defaultsTo(10);
+
         OptionSpec<Integer> oWideLimit = parser.accepts("w", "Limit number of pages on each level (useful for debugging, to skip downloading all the pages)")
                 .withRequiredArg().describedAs("pages").ofType(Integer.class)
                 .defaultsTo(Integer.MAX_VALUE);
 
+        OptionSpec<String> oElections = parser.accepts("E", "Election for daemon to watch, as name=URL. Repeat for several elections, they are crawled concurrently.")
+                .withRequiredArg().describedAs("name=URL").ofType(String.class);
+
+        OptionSpec<String> oDataDir = parser.accepts("D", "Daemon data dir. Each election gets its own archive, subtree sizes and CSV snapshots there.")
+                .withRequiredArg().describedAs("DIR").ofType(String.class)
+                .defaultsTo("data/");
+
+        OptionSpec<Integer> oPeriod = parser.accepts("S", "Period between daemon crawl starts. If the crawl takes longer, next one starts right away.")
+                .withRequiredArg().describedAs("secs").ofType(Integer.class)
+                .defaultsTo(600);
+
+        OptionSpec<Long> oCheckTolerance = parser.accepts("T", "Difference between level totals which is not reported by summary check.")
+                .withRequiredArg().describedAs("votes").ofType(Long.class)
+                .defaultsTo(0L);
+
+        OptionSpec<Double> oCheckRelTolerance = parser.accepts("R", "Relative difference between level totals which is not reported by summary check, in percent of the larger total. Difference is reported only if it is over both -T and -R.")
+                .withRequiredArg().describedAs("percent").ofType(Double.class)
+                .defaultsTo(0.0);
+
         OptionSpec<Boolean> shouldCheck = parser.accepts("c", "Cross-check the data").withRequiredArg().ofType(boolean.class).defaultsTo(true);
 
         OptionSet set = null;
@@ -95,150 +155,42 @@ public class Shared {
         }
 
         pageDir = set.valueOf(oPageDir);
+        pageFormat = set.valueOf(oPageFormat);
+        archiveDir = set.valueOf(oArchiveDir);
+        subtreeHints = set.valueOf(oSubtreeHints);
         resultsDir = set.valueOf(oResultsDir);
         threads = set.valueOf(oThreads);
+        minConcurrency = set.valueOf(oMinConcurrency);
         wideLimit = set.valueOf(oWideLimit);
         rootURL = set.valueOf(oRootURL);
         thinkTime = set.valueOf(oThinkTime);
         checkSummaries = set.valueOf(shouldCheck);
-    }
-
-    public static Document download(String url) throws InterruptedException {
-//        System.err.println("Downloading " + url);
-        
-        String doc = fetch(url);
-//        System.err.println("1-st Received: " + doc);
-
-        Integer key = parseLoginKey(doc);
-        if (key != null) {
-            sendPOST(url, key);
-            doc = fetch(url);
-
-//            System.err.println("2-nd Received: " + doc);
-        }
-
-        return Jsoup.parse(doc);
-    }
-
-    public static Integer parseLoginKey(String doc) {
-        Document document = Jsoup.parse(doc);
-        
-        Elements elements = document.select("html > body > form > input");
-
-        for (Element e : elements) {
-            if ("key".equals(e.attr("name"))) {
-                return Integer.valueOf(e.attr("value"));
-            }
-        }
-        
-        return null;
-    }
-
-    private static void sendPOST(String url, int key) {
-//        System.err.println("Sending POST with " + key);
-
-        URL u;
-        HttpURLConnection connection = null;
-        try {
-            u = new URL(url);
-            connection = (HttpURLConnection) u.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setDoInput(true);
-            connection.setDoOutput(true);
-
-            DataOutputStream stream = new DataOutputStream(connection.getOutputStream());
-            stream.writeBytes("key=" + key);
-            stream.flush();
-            stream.close();
-
-        } catch (IOException e) {
-            System.err.println("IOException while sending POST: " + e.getMessage());
-        } finally {
-            if (connection != null) {
-                try {
-                    readOut(connection.getInputStream());
-                } catch (IOException e) {
-                    // do nothing
-                }
-
-                try {
-                    readOut(connection.getErrorStream());
-                } catch (IOException e) {
-                    // do nothing
-                }
-            }
-        }
-    }
-
-    private static void readOut(InputStream stream) throws IOException {
-        if (stream == null) {
-            return;
-        }
-        BufferedReader in = new BufferedReader(new InputStreamReader(stream));
-        String line;
-        while((line=in.readLine())!=null) {
-            // do nothing
+        checkTolerance = set.valueOf(oCheckTolerance);
+        checkRelTolerance = set.valueOf(oCheckRelTolerance);
+        burst = set.valueOf(oBurst);
+        attempts = set.valueOf(oAttempts);
+        metricsPeriod = set.valueOf(oMetricsPeriod);
+        incremental = set.has("i");
+        parseInline = set.has("x");
+        discardPages = set.has("d");
+        virtualThreads = set.has("V");
+        elections = set.valuesOf(oElections);
+        dataDir = set.valueOf(oDataDir);
+        period = set.valueOf(oPeriod);
+
+        if (discardPages && (!parseInline || incremental || archiveDir != null)) {
+            System.err.println("-d needs -x, and cannot be used with -i or -a");
+            System.exit(1);
         }
-        in.close();
-    }
 
-    private static String fetch(String url) throws InterruptedException {
-
-        URL u;
-        HttpURLConnection hc = null;
-
-        for (int tries = 0; tries < 10; tries++) {
-            try {
-                TimeUnit.MILLISECONDS.sleep(thinkTime);
-
-                // God, I miss Java 7 here.
-
-                u = new URL(url);
-                hc = (HttpURLConnection) u.openConnection();
-                hc.setDoInput(true);
-                hc.setDoOutput(false);
-
-                InputStream in;
-
-                hc.setRequestProperty("Accept-Encoding", "gzip, deflate");
-                hc.setRequestProperty("Pragma", "no-cache");
-                if (hc.getResponseCode() == 200) {
-                    in = hc.getInputStream();
-                    if ("gzip".equals(hc.getHeaderField("Content-Encoding"))) {
-                        in = new GZIPInputStream(in);
-                    }
-                } else {
-                    throw new IOException(hc.getResponseCode() + " " + hc.getResponseMessage());
-                }
-                
-                InputStreamReader streamReader = new InputStreamReader(in, "cp1251");
-                BufferedReader reader = new BufferedReader(streamReader);
-
-                StringBuilder builder = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    builder.append(line);
-                }
-
-                return builder.toString();
-            } catch (IOException e) {
-                System.err.println("Error fetching: " + e.getMessage());
-                TimeUnit.SECONDS.sleep(5);
-            } finally {
-                    try {
-                    readOut(hc.getInputStream());
-                } catch (IOException e) {
-                    // do nothing
-                }
-
-                    try {
-                    readOut(hc.getErrorStream());
-                } catch (IOException e) {
-                    // do nothing
-                }
-            }
+        if (set.has(oRateLimit)) {
+            rateLimit = set.valueOf(oRateLimit);
+        } else {
+            rateLimit = (thinkTime > 0) ? 1000.0 / thinkTime : 0;
         }
-        return "";
+        limiter = new RateLimiter(rateLimit, burst);
+        metrics = new Metrics(wideLimit);
+        engine = new HttpEngine(threads, minConcurrency, limiter, new RetryPolicy(attempts), metrics, virtualThreads);
     }
 
 }
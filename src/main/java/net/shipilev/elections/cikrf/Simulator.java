@@ -0,0 +1,752 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package net.shipilev.elections.cikrf;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local stand-in for CIK site, serving the synthetic election tree.
+ *
+ * Pages mimic the layout spider and parser expect: the root and region pages have the result tables
+ * with links to the next level, TIK pages are the gateways to subject sites, and subject sites
+ * hold the UIK tables behind the "key" handshake. Subject site is served on the other host name,
+ * so spider sees two hosts, as it does with the real site.
+ *
+ * Latency, errors and throttling can be injected, to see how spider copes with them.
+ * Numbers are generated deterministically from the seed, and the sums at every level add up.
+ */
+public class Simulator {
+
+    private static final String CHARSET = "cp1251";
+    private static final String COOKIE = "izbkey";
+
+    private static final String[] ROWS = {
+            "Число избирателей, внесенных в список избирателей",
+            "Число избирательных бюллетеней, полученных участковой избирательной комиссией",
+            "Число избирательных бюллетеней, выданных избирателям",
+            "Число погашенных избирательных бюллетеней",
+            "Число действительных избирательных бюллетеней",
+            "Число недействительных избирательных бюллетеней",
+    };
+
+    public static void main(String[] args) throws IOException {
+        Simulator sim = fromArgs(args);
+        sim.start();
+        System.err.println("Serving simulated CIK tree at " + sim.getRootURL() + ", " + sim.getPageCount() + " pages");
+    }
+
+    /**
+     * Configures the simulator from command line.
+     */
+    public static Simulator fromArgs(String[] args) throws IOException {
+        OptionParser parser = new OptionParser();
+        parser.formatHelpWith(new OptFormatter());
+        parser.accepts("h", "Print help and exit");
+
+        OptionSpec<Integer> oPort = parser.accepts("P", "Port to listen on, 0 to pick any free one")
+                .withRequiredArg().describedAs("port").ofType(Integer.class)
+                .defaultsTo(8080);
+        OptionSpec<Integer> oRegions = parser.accepts("g", "Number of regions (first-level pages)")
+                .withRequiredArg().describedAs("pages").ofType(Integer.class)
+                .defaultsTo(10);
+        OptionSpec<Integer> oTiks = parser.accepts("k", "Number of TIKs in the first region (second-level pages)")
+                .withRequiredArg().describedAs("pages").ofType(Integer.class)
+                .defaultsTo(20);
+        OptionSpec<Double> oSkew = parser.accepts("w", "Size of the last region relative to the first one; regions grow in size along the list")
+                .withRequiredArg().describedAs("factor").ofType(Double.class)
+                .defaultsTo(1.0);
+        OptionSpec<Integer> oUiks = parser.accepts("u", "Number of UIKs for each TIK")
+                .withRequiredArg().describedAs("uiks").ofType(Integer.class)
+                .defaultsTo(30);
+        OptionSpec<Integer> oCandidates = parser.accepts("c", "Number of candidates")
+                .withRequiredArg().describedAs("candidates").ofType(Integer.class)
+                .defaultsTo(5);
+        OptionSpec<Double> oLatency = parser.accepts("d", "Median response latency")
+                .withRequiredArg().describedAs("msecs").ofType(Double.class)
+                .defaultsTo(20.0);
+        OptionSpec<Double> oSigma = parser.accepts("j", "Latency spread: sigma of log-normal distribution, 0 for constant latency")
+                .withRequiredArg().describedAs("sigma").ofType(Double.class)
+                .defaultsTo(0.5);
+        OptionSpec<Double> oErrors = parser.accepts("e", "Fraction of requests failing with 5xx or dropped connection")
+                .withRequiredArg().describedAs("fraction").ofType(Double.class)
+                .defaultsTo(0.0);
+        OptionSpec<Double> oThrottle = parser.accepts("l", "Request rate for each host, excess requests get 429; 0 for no throttling")
+                .withRequiredArg().describedAs("reqs/sec").ofType(Double.class)
+                .defaultsTo(0.0);
+        OptionSpec<Integer> oSession = parser.accepts("n", "Number of requests the subject site session lasts, before asking for the key again")
+                .withRequiredArg().describedAs("reqs").ofType(Integer.class)
+                .defaultsTo(1000);
+        OptionSpec<Long> oSeed = parser.accepts("s", "Seed for generated numbers")
+                .withRequiredArg().describedAs("seed").ofType(Long.class)
+                .defaultsTo(42L);
+
+        OptionSet set = null;
+        try {
+            set = parser.parse(args);
+        } catch (OptionException e) {
+            parser.printHelpOn(System.err);
+            System.exit(1);
+        }
+
+        if (set.has("h")) {
+            parser.printHelpOn(System.err);
+            System.exit(0);
+        }
+
+        Simulator sim = new Simulator(set.valueOf(oRegions), set.valueOf(oTiks), set.valueOf(oUiks), set.valueOf(oCandidates), set.valueOf(oSeed));
+        sim.port = set.valueOf(oPort);
+        sim.latency = set.valueOf(oLatency);
+        sim.sigma = set.valueOf(oSigma);
+        sim.errorRate = set.valueOf(oErrors);
+        sim.throttle = set.valueOf(oThrottle);
+        sim.sessionRequests = set.valueOf(oSession);
+        sim.skew = set.valueOf(oSkew);
+        return sim;
+    }
+
+    private final int regions;
+    private final int tiks;
+    private final int uiks;
+    private final int candidates;
+    private final long seed;
+
+    private int port;
+    private double latency;
+    private double sigma;
+    private double errorRate;
+    private double throttle;
+    private int sessionRequests;
+    private double skew;
+
+    private final Random random;
+    private final ConcurrentMap<String, int[]> sums;
+    private final ConcurrentMap<Integer, Boolean> challenges;
+    private final ConcurrentMap<String, AtomicInteger> sessions;
+    private final ConcurrentMap<String, Throttle> throttles;
+    private final String lastModified;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong handshakes = new AtomicLong();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * @param regions number of regions
+     * @param tiks number of TIKs in each region
+     * @param uiks number of UIKs for each TIK
+     * @param candidates number of candidates
+     * @param seed seed for generated numbers
+     */
+    public Simulator(int regions, int tiks, int uiks, int candidates, long seed) {
+        this.regions = regions;
+        this.tiks = tiks;
+        this.uiks = uiks;
+        this.candidates = candidates;
+        this.seed = seed;
+        this.sessionRequests = 1000;
+        this.skew = 1;
+
+        this.random = new Random(seed);
+        this.sums = new ConcurrentHashMap<String, int[]>();
+        this.challenges = new ConcurrentHashMap<Integer, Boolean>();
+        this.sessions = new ConcurrentHashMap<String, AtomicInteger>();
+        this.throttles = new ConcurrentHashMap<String, Throttle>();
+
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        this.lastModified = format.format(new Date());
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * @param median median latency, milliseconds
+     * @param sigma spread of log-normal distribution
+     */
+    public void setLatency(double median, double sigma) {
+        this.latency = median;
+        this.sigma = sigma;
+    }
+
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    public void setThrottle(double throttle) {
+        this.throttle = throttle;
+    }
+
+    public void start() throws IOException {
+        /**
+         * Headers and body go in separate writes: without TCP_NODELAY, the delayed ACK adds 40 ms to every response.
+         */
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+
+        server = HttpServer.create(new InetSocketAddress(port), 100);
+        server.createContext("/region", new Handler() {
+            @Override
+            protected void serve(HttpExchange ex, int[] node, String body) throws IOException {
+                if (node.length < 2) {
+                    respond(ex, 200, table(ex, node, true));
+                } else {
+                    respond(ex, 200, gateway(ex, node));
+                }
+            }
+        });
+        server.createContext("/subject", new Handler() {
+            @Override
+            protected void serve(HttpExchange ex, int[] node, String body) throws IOException {
+                subject(ex, node, body);
+            }
+        });
+
+        executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("sim-%d").setDaemon(true).build());
+        server.setExecutor(executor);
+        server.start();
+        port = server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    public String getRootURL() {
+        return "http://localhost:" + port + "/region?node=0";
+    }
+
+    /**
+     * @return number of pages spider should download
+     */
+    public int getPageCount() {
+        int count = 1 + regions;
+        for (int r = 1; r <= regions; r++) {
+            count += 2 * tiksIn(r);
+        }
+        return count;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    /**
+     * Common request handling: injects latency, errors and throttling, then serves the node.
+     */
+    private abstract class Handler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            try {
+                requests.incrementAndGet();
+                String body = new String(ByteStreams.toByteArray(ex.getRequestBody()), CHARSET);
+
+                sleep();
+
+                if (!allowed(ex)) {
+                    throttled.incrementAndGet();
+                    ex.getResponseHeaders().add("Retry-After", "1");
+                    respond(ex, 429, page("<p>Too Many Requests</p>"));
+                    return;
+                }
+
+                double dice;
+                synchronized (random) {
+                    dice = random.nextDouble();
+                }
+                if (dice < errorRate) {
+                    errors.incrementAndGet();
+                    if (dice < errorRate / 3) {
+                        // dropped connection
+                        return;
+                    }
+                    respond(ex, 503, page("<p>Service Unavailable</p>"));
+                    return;
+                }
+
+                int[] node = parseNode(ex.getRequestURI());
+                if (node == null) {
+                    respond(ex, 404, page("<p>Not Found</p>"));
+                    return;
+                }
+
+                serve(ex, node, body);
+            } finally {
+                ex.close();
+            }
+        }
+
+        protected abstract void serve(HttpExchange ex, int[] node, String body) throws IOException;
+    }
+
+    private void sleep() {
+        if (latency <= 0) {
+            return;
+        }
+        double gaussian;
+        synchronized (random) {
+            gaussian = random.nextGaussian();
+        }
+        long nanos = (long) (TimeUnit.MILLISECONDS.toNanos(1) * latency * Math.exp(sigma * gaussian));
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean allowed(HttpExchange ex) {
+        if (throttle <= 0) {
+            return true;
+        }
+        String host = hostOf(ex);
+        Throttle t = throttles.get(host);
+        if (t == null) {
+            t = new Throttle(throttle);
+            Throttle existing = throttles.putIfAbsent(host, t);
+            if (existing != null) {
+                t = existing;
+            }
+        }
+        return t.tryAcquire();
+    }
+
+    /**
+     * Token bucket which rejects the excess requests instead of delaying them.
+     */
+    private static class Throttle {
+        private final double tokensPerNano;
+        private final double capacity;
+        private double tokens;
+        private long last;
+
+        public Throttle(double rate) {
+            this.tokensPerNano = rate / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = Math.max(1, rate);
+            this.tokens = capacity;
+            this.last = System.nanoTime();
+        }
+
+        public synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - last) * tokensPerNano);
+            last = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+
+    /**
+     * Node is the path in the tree: "0" for the root, "0.3" for the region, "0.3.5" for the TIK.
+     * @return path without the root element; null, if malformed or out of the tree
+     */
+    private int[] parseNode(URI uri) {
+        String query = uri.getRawQuery();
+        if (query == null || !query.startsWith("node=0")) {
+            return null;
+        }
+        String[] parts = query.substring("node=".length()).split("\\.");
+        if (parts.length > 3) {
+            return null;
+        }
+        int[] node = new int[parts.length - 1];
+        try {
+            for (int i = 0; i < node.length; i++) {
+                node[i] = Integer.parseInt(parts[i + 1]);
+                int limit = (i == 0) ? regions : tiksIn(node[0]);
+                if (node[i] < 1 || node[i] > limit) {
+                    return null;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return node;
+    }
+
+    /**
+     * Subject site page: UIK table, if session is valid; the key challenge otherwise.
+     */
+    private void subject(HttpExchange ex, int[] node, String body) throws IOException {
+        if (node.length != 2) {
+            respond(ex, 404, page("<p>Not Found</p>"));
+            return;
+        }
+
+        if ("POST".equals(ex.getRequestMethod())) {
+            handshake(ex, body);
+            return;
+        }
+
+        AtomicInteger session = sessions.get(String.valueOf(cookie(ex)));
+        if (session == null || session.decrementAndGet() < 0) {
+            int key;
+            synchronized (random) {
+                key = 100000 + random.nextInt(900000);
+            }
+            challenges.put(key, Boolean.TRUE);
+            respond(ex, 200, page("<form method=\"post\" action=\"" + ex.getRequestURI() + "\">" +
+                    "<p>Введите число с картинки</p>" +
+                    "<input type=\"text\" name=\"key\" value=\"" + key + "\">" +
+                    "<input type=\"submit\" value=\"Продолжить\"></form>"));
+            return;
+        }
+
+        respond(ex, 200, table(ex, node, false));
+    }
+
+    private String cookie(HttpExchange ex) {
+        List<String> headers = ex.getRequestHeaders().get("Cookie");
+        if (headers == null) {
+            return null;
+        }
+        for (String header : headers) {
+            for (String c : header.split(";")) {
+                String[] kv = c.trim().split("=", 2);
+                if (kv.length == 2 && COOKIE.equals(kv[0])) {
+                    return kv[1];
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Key handshake: the right key gets the session cookie.
+     */
+    private void handshake(HttpExchange ex, String body) throws IOException {
+        String[] kv = body.trim().split("=", 2);
+        Integer key = null;
+        try {
+            key = (kv.length == 2 && "key".equals(kv[0])) ? Integer.valueOf(kv[1]) : null;
+        } catch (NumberFormatException e) {
+            // wrong key
+        }
+        if (key == null || challenges.remove(key) == null) {
+            respond(ex, 403, page("<p>Forbidden</p>"));
+            return;
+        }
+
+        handshakes.incrementAndGet();
+        String token = Long.toHexString(key * 31L + System.nanoTime());
+        sessions.put(token, new AtomicInteger(sessionRequests));
+        ex.getResponseHeaders().add("Set-Cookie", COOKIE + "=" + token + "; Path=/");
+        respond(ex, 200, page("<p>OK</p>"));
+    }
+
+    /**
+     * Result table for the node: breadcrumbs, the sums, and the data for every child.
+     * @param links true, if children names should link to the child pages
+     */
+    private String table(HttpExchange ex, int[] node, boolean links) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<table width=\"100%\"><tr><td>");
+        breadcrumbs(sb, ex, node);
+        sb.append("</td></tr>\n<tr><td><table><tr>\n");
+
+        int[] total = sum(node);
+
+        sb.append("<td valign=\"top\"><table border=\"1\">\n");
+        for (int r = 0; r < total.length; r++) {
+            if (r == ROWS.length) {
+                sb.append("<tr><td colspan=\"3\">&nbsp;</td></tr>\n");
+            }
+            sb.append("<tr><td>").append(r + 1).append("</td><td>").append(rowName(r)).append("</td><td><b>")
+                    .append(total[r]).append("</b></td></tr>\n");
+        }
+        sb.append("</table></td>\n");
+
+        int children = childCount(node);
+        int[][] data = new int[children][];
+        for (int c = 0; c < children; c++) {
+            data[c] = sum(child(node, c + 1));
+        }
+
+        sb.append("<td valign=\"top\"><div style=\"overflow:scroll\"><table border=\"1\">\n<tr>");
+        for (int c = 0; c < children; c++) {
+            int[] child = child(node, c + 1);
+            sb.append("<td>");
+            if (links) {
+                sb.append("<nobr><a href=\"").append(regionURL(ex, child)).append("\">").append(name(child)).append("</a></nobr>");
+            } else {
+                sb.append(name(child));
+            }
+            sb.append("</td>");
+        }
+        sb.append("</tr>\n");
+        for (int r = 0; r < total.length; r++) {
+            if (r == ROWS.length) {
+                sb.append("<tr>");
+                for (int c = 0; c < children; c++) {
+                    sb.append("<td>&nbsp;</td>");
+                }
+                sb.append("</tr>\n");
+            }
+            sb.append("<tr>");
+            for (int c = 0; c < children; c++) {
+                sb.append("<td><nobr><b>").append(data[c][r]).append("</b> ");
+                if (r >= ROWS.length) {
+                    sb.append(String.format(Locale.US, "%.2f%%", data[c][r] * 100.0 / Math.max(1, data[c][4])));
+                }
+                sb.append("</nobr></td>");
+            }
+            sb.append("</tr>\n");
+        }
+        sb.append("</table></div></td>\n");
+
+        sb.append("</tr></table></td></tr></table>\n");
+        return page(sb.toString());
+    }
+
+    /**
+     * TIK page on the main site only refers to subject site.
+     */
+    private String gateway(HttpExchange ex, int[] node) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<table width=\"100%\"><tr><td>");
+        breadcrumbs(sb, ex, node);
+        sb.append("</td></tr>\n<tr><td>Результаты по участковым избирательным комиссиям размещены на ");
+        sb.append("<a href=\"").append(subjectURL(ex, node)).append("\">сайт избирательной комиссии субъекта Российской Федерации</a>");
+        sb.append("</td></tr></table>\n");
+        return page(sb.toString());
+    }
+
+    private void breadcrumbs(StringBuilder sb, HttpExchange ex, int[] node) {
+        for (int d = 0; d <= node.length; d++) {
+            int[] parent = new int[d];
+            System.arraycopy(node, 0, parent, 0, d);
+            if (d > 0) {
+                sb.append(" &gt; ");
+            }
+            sb.append("<a href=\"").append(regionURL(ex, parent)).append("\">").append(name(parent)).append("</a>");
+        }
+    }
+
+    private static String page(String content) {
+        return "<html><head><meta http-equiv=\"Content-Type\" content=\"text/html; charset=windows-1251\">" +
+                "<title>Сведения о проведении выборов</title></head>\n<body>\n" + content + "</body></html>\n";
+    }
+
+    private void respond(HttpExchange ex, int code, String page) throws IOException {
+        byte[] body = page.getBytes(CHARSET);
+
+        String eTag = "\"" + Hashing.md5().hashBytes(body).toString() + "\"";
+        ex.getResponseHeaders().add("Content-Type", "text/html; charset=windows-1251");
+        if (code == 200) {
+            ex.getResponseHeaders().add("ETag", eTag);
+            ex.getResponseHeaders().add("Last-Modified", lastModified);
+            if (eTag.equals(ex.getRequestHeaders().getFirst("If-None-Match"))) {
+                ex.sendResponseHeaders(304, -1);
+                return;
+            }
+        }
+
+        String accept = ex.getRequestHeaders().getFirst("Accept-Encoding");
+        if (accept != null && accept.contains("gzip")) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            GZIPOutputStream gzip = new GZIPOutputStream(bos);
+            gzip.write(body);
+            gzip.close();
+            body = bos.toByteArray();
+            ex.getResponseHeaders().add("Content-Encoding", "gzip");
+        }
+
+        ex.sendResponseHeaders(code, body.length);
+        OutputStream os = ex.getResponseBody();
+        os.write(body);
+        os.close();
+    }
+
+    private static String hostOf(HttpExchange ex) {
+        String host = ex.getRequestHeaders().getFirst("Host");
+        return (host == null) ? "localhost" : host;
+    }
+
+    private String regionURL(HttpExchange ex, int[] node) {
+        return "http://" + hostOf(ex) + "/region?node=" + path(node);
+    }
+
+    /**
+     * Subject site lives on the other host name: 127.0.0.1 instead of localhost, and vice versa.
+     */
+    private String subjectURL(HttpExchange ex, int[] node) {
+        String host = hostOf(ex);
+        String subject = host.startsWith("localhost") ? host.replace("localhost", "127.0.0.1") : host.replace("127.0.0.1", "localhost");
+        return "http://" + subject + "/subject?node=" + path(node);
+    }
+
+    private static String path(int[] node) {
+        StringBuilder sb = new StringBuilder("0");
+        for (int n : node) {
+            sb.append(".").append(n);
+        }
+        return sb.toString();
+    }
+
+    private static String name(int[] node) {
+        switch (node.length) {
+            case 0:
+                return "Российская Федерация";
+            case 1:
+                return "Субъект РФ №" + node[0];
+            case 2:
+                return "ТИК №" + node[0] + "-" + node[1];
+            default:
+                return "УИК №" + (node[0] * 10000 + node[1] * 100 + node[2]);
+        }
+    }
+
+    private String rowName(int row) {
+        if (row < ROWS.length) {
+            return ROWS[row];
+        }
+        return "Кандидат " + (char) ('А' + row - ROWS.length);
+    }
+
+    private int childCount(int[] node) {
+        switch (node.length) {
+            case 0:
+                return regions;
+            case 1:
+                return tiksIn(node[0]);
+            default:
+                return uiks;
+        }
+    }
+
+    /**
+     * Regions grow in size towards the end of the list, up to skew times larger than the first one.
+     */
+    private int tiksIn(int region) {
+        if (regions < 2) {
+            return tiks;
+        }
+        return (int) Math.round(tiks * (1 + (skew - 1) * (region - 1) / (regions - 1)));
+    }
+
+    private static int[] child(int[] node, int index) {
+        int[] child = new int[node.length + 1];
+        System.arraycopy(node, 0, child, 0, node.length);
+        child[node.length] = index;
+        return child;
+    }
+
+    /**
+     * @return row values for the node: sum over children, or the generated UIK data
+     */
+    private int[] sum(int[] node) {
+        String key = path(node);
+        int[] result = sums.get(key);
+        if (result != null) {
+            return result;
+        }
+
+        if (node.length == 3) {
+            result = uik(node);
+        } else {
+            result = new int[ROWS.length + candidates];
+            for (int c = 1; c <= childCount(node); c++) {
+                int[] child = sum(child(node, c));
+                for (int r = 0; r < result.length; r++) {
+                    result[r] += child[r];
+                }
+            }
+        }
+
+        sums.putIfAbsent(key, result);
+        return result;
+    }
+
+    private int[] uik(int[] node) {
+        Random r = new Random(seed * 31 + path(node).hashCode());
+
+        int[] result = new int[ROWS.length + candidates];
+        int voters = 500 + r.nextInt(2000);
+        int received = voters * (80 + r.nextInt(20)) / 100;
+        int issued = voters * (30 + r.nextInt(50)) / 100;
+        issued = Math.min(issued, received);
+        int invalid = issued * r.nextInt(3) / 100;
+        int valid = issued - invalid;
+
+        result[0] = voters;
+        result[1] = received;
+        result[2] = issued;
+        result[3] = received - issued;
+        result[4] = valid;
+        result[5] = invalid;
+
+        int left = valid;
+        for (int c = 0; c < candidates; c++) {
+            int votes = (c == candidates - 1) ? left : left * r.nextInt(70) / 100;
+            result[ROWS.length + c] = votes;
+            left -= votes;
+        }
+        return result;
+    }
+
+}
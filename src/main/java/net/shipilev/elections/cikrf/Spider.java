@@ -16,206 +16,422 @@
 
 package net.shipilev.elections.cikrf;
 
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
+import com.google.common.base.Function;
+import com.google.common.base.Throwables;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.Callable;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class Spider {
 
     public static void main(String[] args) throws IOException, InterruptedException {
         Shared.init(args);
 
-        Spider d = new Spider();
-        d.downloadAll();
-    }
-
-    private void writeFile(Document document, String filename) throws IOException {
-        PrintWriter writer = new PrintWriter(filename, "UTF-8");
-        writer.write(document.toString());
-        writer.flush();
-        writer.close();
-    }
-
-    private void downloadAll() throws IOException, InterruptedException {
-        ExecutorService executor = Executors.newFixedThreadPool(Shared.threads, new ThreadFactory() {
-            @Override
-            public Thread newThread(Runnable r) {
-                Thread t = new Thread(r);
-                t.setDaemon(true);
-                return t;
-            }
-        });
-
-        new File(Shared.pageDir).mkdirs();
+        Parser parser = Shared.parseInline ? new Parser(Shared.resultsDir) : null;
 
-        PrintWriter pw = new PrintWriter(System.err, true);
+        Spider d = new Spider(Shared.rootURL, Shared.pageDir, Shared.archiveDir, Shared.subtreeHints, Shared.metrics, null, parser);
+        d.downloadAll();
 
-        pw.println("Downloading tree from " + Shared.rootURL + " to " + Shared.pageDir);
+        Shared.engine.shutdown();
 
-        Document root = Shared.download(Shared.rootURL);
+        if (parser != null) {
+            parser.finish(new PrintWriter(System.out));
+        }
+    }
 
-        writeFile(root, Shared.pageDir + "/root.data.html");
+    /**
+     * Number of requests handed over to network threads at once, per thread.
+     */
+    private static final int IN_FLIGHT_PER_THREAD = 4;
+
+    private final String rootURL;
+    private final String pageDir;
+    private final String archiveDir;
+    private final String subtreeHints;
+    private final Metrics metrics;
+    private final String metricsDir;
+    private final Parser parser;
+
+    private PageStore store;
+    private ValidatorCache validators;
+    private ExecutorService processors;
+
+    /**
+     * @param rootURL root page of the election
+     * @param pageDir page download dir
+     * @param archiveDir page archive, or null to store pages in page dir
+     * @param subtreeHints subtree sizes file, or null to keep it in page dir
+     * @param metrics crawl metrics
+     * @param metricsDir dir to export metrics to, or null to export them into page dir
+     * @param parser parser to feed the pages to as they arrive, or null
+     */
+    public Spider(String rootURL, String pageDir, String archiveDir, String subtreeHints, Metrics metrics, String metricsDir, Parser parser) {
+        this.rootURL = rootURL;
+        this.pageDir = pageDir;
+        this.archiveDir = archiveDir;
+        this.subtreeHints = subtreeHints;
+        this.metrics = metrics;
+        this.metricsDir = metricsDir;
+        this.parser = parser;
+    }
 
-        List<String> firstLevel = new ArrayList<String>();
-        List<String> secondLevel = new ArrayList<String>();
-        List<String> thirdLevel = new ArrayList<String>();
+    /**
+     * Downloads the whole tree. Network engine is shared, and is left running.
+     * @return true, if all pages were downloaded
+     */
+    public boolean downloadAll() throws IOException, InterruptedException {
+        if (archiveDir != null) {
+            store = new ArchiveStore(archiveDir, pageDir);
+        } else if (Shared.discardPages) {
+            store = null;
+            new File(pageDir).mkdirs();
+        } else {
+            store = PageStore.create(pageDir, Shared.pageFormat);
+        }
 
         /**
-         * Первый уровень: Федеральные? ИКи
+         * Хранилище, потоки обработки и экспорт метрик освобождаем при любом исходе обхода:
+         * иначе блокировка архива переживёт упавший обход, и следующие обходы не смогут его открыть.
          */
-        Elements firstLevelLinks = root.select("html > body > table > tbody > tr > td > table > tbody > tr > td > div > table > tbody > tr > td > nobr > a[href]");
-        for (Element link : firstLevelLinks) {
-            firstLevel.add(link.attr("href"));
-        }
+        Frontier frontier = null;
+        try {
+            if (Shared.incremental) {
+                validators = new ValidatorCache(pageDir);
+            }
 
-        firstLevel = firstLevel.subList(0, Math.min(Shared.wideLimit, firstLevel.size()));
+            PrintWriter pw = new PrintWriter(System.err, true);
 
-        pw.println(firstLevel.size() + " first-level pages to be downloaded");
+            pw.println("Downloading tree from " + rootURL + " to " + pageDir);
 
-        /**
-         * Второй уровень: Сводки по ТИКам
-         */
-        List<Future<Document>> fFirstLevel = new ArrayList<Future<Document>>();
-        for (String url : firstLevel) {
-            fFirstLevel.add(executor.submit(new GetFileTask(url)));
-        }
+            /**
+             * Страницы всех уровней качаются вперемешку: как только страница пришла,
+             * ссылки из неё сразу уходят на скачивание, не дожидаясь остальных страниц уровня.
+             */
+            BlockingQueue<Download> completion = new LinkedBlockingQueue<Download>();
 
-        int i = 0;
-        for (Iterator<Future<Document>> iterator = fFirstLevel.iterator(); iterator.hasNext(); ) {
-            Future<Document> fDoc = iterator.next();
-            pw.printf("First-level download %d of %d, %d second-level pages \n", i + 1, firstLevel.size(), secondLevel.size());
+            /**
+             * Большие регионы качаем первыми, чтобы они не остались хвостом в конце.
+             */
+            File hints = (subtreeHints != null) ? new File(subtreeHints) : new File(pageDir, SubtreeSizes.FILE_NAME);
+            SubtreeSizes sizes = new SubtreeSizes(hints);
 
-            Document doc;
-            try {
-                doc = fDoc.get();
-            } catch (ExecutionException e) {
-                pw.println("Error downloading " + fDoc + " " + e);
-                continue;
+            frontier = new Frontier(pageDir, sizes);
+            if (frontier.isResumed()) {
+                if (store == null) {
+                    throw new IOException("Cannot resume interrupted download in " + pageDir + " without stored pages, remove the dir and re-run");
+                }
+                pw.println("Resuming interrupted download, " + frontier.getResumedCompleted().size() + " pages are already downloaded");
+                if (parser != null) {
+                    /**
+                     * Уже скачанные страницы повторно не придут, разбираем их копии.
+                     */
+                    for (Level level : Level.values()) {
+                        for (String name : store.list(level)) {
+                            parser.accept(level, name, store.read(name));
+                        }
+                    }
+                }
+                if (validators != null) {
+                    for (String url : frontier.getResumedCompleted()) {
+                        validators.retain(url);
+                    }
+                }
+            } else {
+                frontier.offer(rootURL, Level.ROOT);
             }
 
-            writeFile(doc, Shared.pageDir + "/first-" + i + ".data.html");
+            metrics.startExport(new File(metricsDir != null ? metricsDir : pageDir), Shared.metricsPeriod);
+            updateMetrics(frontier, 0);
 
-            Elements secondLevelLinks = doc.select("html > body > table > tbody > tr > td > table > tbody > tr > td > div > table > tbody > tr > td > nobr > a[href]");
-            for (Element link : secondLevelLinks) {
-                secondLevel.add(link.attr("href"));
-            }
+            /**
+             * Остальные ссылки ждут своей очереди во frontier, при необходимости на диске.
+             */
+            int maxInFlight = Shared.threads * IN_FLIGHT_PER_THREAD;
 
             /**
-             * Shortcut для тех страниц, которые не имеют gateway-страниц (типа "Зарубежных территорий")
+             * Пришедшие страницы обрабатываются (запись, поиск ссылок) в порядке прихода, на отдельных потоках.
+             * Главному потоку остаётся только frontier. Страниц в обработке не больше, чем в полёте:
+             * если обработчики не успевают, сетевые потоки обрабатывают страницы сами и не качают новые.
              */
-            Elements uikLinks = doc.select("html > body > table > tbody > tr > td > a");
-            for (Element link : uikLinks) {
-                if (link.ownText().contains("сайт избирательной комиссии субъекта Российской Федерации")) {
-                    thirdLevel.add(link.attr("href"));
+            int cpus = Runtime.getRuntime().availableProcessors();
+            processors = new ThreadPoolExecutor(cpus, cpus, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(maxInFlight),
+                    new ThreadFactoryBuilder().setNameFormat("process-%d").setDaemon(true).build(),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+
+            /**
+             * Страницы, которые не скачались за все попытки, откладываются до конца обхода,
+             * и пробуются ещё раз, когда сайт, возможно, уже пришёл в себя.
+             */
+            List<Page.Link> failed = new ArrayList<Page.Link>();
+            Queue<Page.Link> requeue = new LinkedList<Page.Link>();
+            boolean requeued = false;
+
+            int inFlight = 0;
+            while (true) {
+                while (inFlight < maxInFlight) {
+                    Page.Link next = frontier.poll();
+                    if (next == null) {
+                        next = requeue.poll();
+                    }
+                    if (next == null) {
+                        break;
+                    }
+                    submit(completion, next);
+                    inFlight++;
                 }
-            }
 
-            i++;
-            iterator.remove();
-        }
-        fFirstLevel.clear();
+                if (inFlight == 0) {
+                    if (requeued || failed.isEmpty()) {
+                        break;
+                    }
+                    pw.println("Retrying " + failed.size() + " failed pages");
+                    requeue.addAll(failed);
+                    failed.clear();
+                    requeued = true;
+                    continue;
+                }
 
-        secondLevel = secondLevel.subList(0, Math.min(Shared.wideLimit, secondLevel.size()));
+                Download download = completion.take();
+                inFlight--;
+
+                Processed page;
+                try {
+                    page = download.getFuture().get();
+                } catch (ExecutionException e) {
+                    pw.println("Error downloading " + download.getLink().getUrl() + ": " + e.getCause());
+                    metrics.forLevel(download.getLink().getLevel()).failed();
+                    failed.add(download.getLink());
+                    continue;
+                }
 
-        pw.println(secondLevel.size() + " second-level pages to be downloaded");
+                Level level = download.getLink().getLevel();
+                metrics.forLevel(level).page(System.nanoTime() - download.getStartTime(), page.getBytes(), page.isUnchanged());
 
-        /**
-         * Спасибо дядям из избиркома, нужно перейти на сайт конкретного ТИКа для получения подробностей по УИКам
-         */
-        List<Future<Document>> fSecondLevel = new ArrayList<Future<Document>>();
-        for (String url : secondLevel) {
-            fSecondLevel.add(executor.submit(new GetFileTask(url)));
-        }
+                for (Page.Link link : page.getLinks()) {
+                    if (frontier.getDiscovered(link.getLevel()) < Shared.wideLimit) {
+                        frontier.offer(link.getUrl(), link.getLevel(), download.getLink());
+                    }
+                }
 
-        i = 0;
+                frontier.complete(download.getLink().getUrl(), level);
+                updateMetrics(frontier, inFlight);
 
-        for (Iterator<Future<Document>> iterator = fSecondLevel.iterator(); iterator.hasNext(); ) {
-            Future<Document> fDoc = iterator.next();
-            pw.printf("Second-level download %d of %d, %d third-level pages\n", i + 1, secondLevel.size(), thirdLevel.size());
+                pw.printf("Downloaded %d first-level (of %d), %d second-level (of %d), %d third-level (of %d) pages, %d in flight, ~%d pages total, ETA %s\n",
+                        frontier.getCompleted(Level.FIRST), frontier.getDiscovered(Level.FIRST),
+                        frontier.getCompleted(Level.SECOND), frontier.getDiscovered(Level.SECOND),
+                        frontier.getCompleted(Level.THIRD), frontier.getDiscovered(Level.THIRD),
+                        inFlight, metrics.getEstimatedTotal(), Metrics.formatSeconds(metrics.getEtaSeconds()));
+            }
 
-            Document doc;
-            try {
-                doc = fDoc.get();
-            } catch (ExecutionException e) {
-                pw.println("Error downloading " + fDoc + " " + e);
-                continue;
+            if (failed.isEmpty()) {
+                frontier.finish();
+            } else {
+                pw.println(failed.size() + " pages had failed to download, re-run with the same page dir to resume");
+                frontier.close();
             }
 
-            writeFile(doc, Shared.pageDir + "/second-" + i + ".data.html");
+            sizes.save();
+
+            updateMetrics(frontier, 0);
+
+            if (validators != null) {
+                /**
+                 * Страницы, пропавшие с сайта, не должны попасть в парсер.
+                 * Если скачали не всё, то непонятно, пропали они или нет: оставим до следующего раза.
+                 */
+                for (ValidatorCache.Entry e : validators.stale()) {
+                    if (failed.isEmpty()) {
+                        store.remove(e.getLevel(), e.getUrl());
+                    } else {
+                        validators.retain(e.getUrl());
+                    }
+                }
+                validators.save();
+            }
 
-            Elements uikLinks = doc.select("html > body > table > tbody > tr > td > a");
-            for (Element link : uikLinks) {
-                if (link.ownText().contains("сайт избирательной комиссии субъекта Российской Федерации")) {
-                    thirdLevel.add(link.attr("href"));
+            return failed.isEmpty();
+        } finally {
+            if (processors != null) {
+                processors.shutdown();
+            }
+            try {
+                metrics.stopExport();
+            } finally {
+                try {
+                    if (frontier != null) {
+                        frontier.close();
+                    }
+                } finally {
+                    if (store != null) {
+                        store.close();
+                    }
                 }
             }
+        }
+    }
 
-            i++;
-            iterator.remove();
+    private void updateMetrics(Frontier frontier, int inFlight) {
+        for (Level level : Level.values()) {
+            metrics.forLevel(level).setProgress(frontier.getDiscovered(level), frontier.getCompleted(level));
         }
-        fSecondLevel.clear();
+        metrics.setQueue(inFlight, frontier.getPending());
+    }
 
-        thirdLevel = thirdLevel.subList(0, Math.min(Shared.wideLimit, thirdLevel.size()));
+    /**
+     * Stores and parses the page, and extracts its links. Runs on processing threads.
+     */
+    private Processed process(Page page) throws IOException {
+        if (store != null && !page.isUnchanged()) {
+            store.put(page.getLevel(), page.getUrl(), page.getBody());
+        }
+        if (parser != null) {
+            /**
+             * Страница скачана и сохранена, даже если не разобралась: качать её заново бесполезно.
+             */
+            try {
+                parser.accept(page.getLevel(), page.getUrl(), page.getBody());
+            } catch (RuntimeException e) {
+                System.err.println("Error parsing " + page.getUrl() + ": " + e);
+            }
+        }
+        return new Processed(page.getLinks(), page.getBody().length, page.isUnchanged());
+    }
 
-        pw.println(thirdLevel.size() + " third-level pages to be downloaded");
+    private Page toPage(String url, Level level, ValidatorCache.Entry previous, HttpEngine.Response response) throws IOException {
+        if (response.isNotModified()) {
+            byte[] body = store.get(level, url);
+            if (body == null) {
+                throw new IOException("Page is not modified, but there is no stored copy: " + url);
+            }
+            validators.put(previous);
+            return new Page(url, level, body, true);
+        }
 
-        List<Future<Document>> fThirdLevel = new ArrayList<Future<Document>>();
-        for (String url : thirdLevel) {
-            fThirdLevel.add(executor.submit(new GetFileTask(url)));
+        byte[] body = response.getBody();
+        boolean unchanged = false;
+        if (validators != null) {
+            String hash = Hashing.md5().hashBytes(body).toString();
+            unchanged = (previous != null) && hash.equals(previous.getHash());
+            validators.put(new ValidatorCache.Entry(url, level, response.getETag(), response.getLastModified(), hash));
         }
 
-        i = 0;
-        for (Iterator<Future<Document>> iterator = fThirdLevel.iterator(); iterator.hasNext(); ) {
-            Future<Document> fDoc = iterator.next();
-            pw.printf("Third-level download %d of %d\n", i + 1, thirdLevel.size());
+        return new Page(url, level, body, unchanged);
+    }
 
-            Document doc;
-            try {
-                doc = fDoc.get();
-            } catch (ExecutionException e) {
-                pw.println("Error downloading " + fDoc + " " + e);
-                continue;
+    /**
+     * Submits the page for download; completed future is put into completion queue.
+     */
+    private void submit(final BlockingQueue<Download> completion, Page.Link link) {
+        final String url = link.getUrl();
+        final Level level = link.getLevel();
+
+        /**
+         * Условный запрос имеет смысл, только если есть старая копия страницы.
+         */
+        ValidatorCache.Entry entry = null;
+        if (validators != null) {
+            entry = validators.get(url);
+            if (entry != null && !store.contains(level, url)) {
+                entry = null;
+            }
+        }
+        final ValidatorCache.Entry previous = entry;
+
+        long start = System.nanoTime();
+        final ListenableFuture<Processed> future = Futures.transform(
+                Shared.engine.downloadAsync(url, previous),
+                new Function<HttpEngine.Response, Processed>() {
+                    @Override
+                    public Processed apply(HttpEngine.Response response) {
+                        try {
+                            return process(toPage(url, level, previous, response));
+                        } catch (IOException e) {
+                            throw Throwables.propagate(e);
+                        }
+                    }
+                },
+                processors);
+
+        final Download download = new Download(link, future, start);
+
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                completion.add(download);
             }
+        }, MoreExecutors.sameThreadExecutor());
+    }
 
-            writeFile(doc, Shared.pageDir + "/third-" + i + ".data.html");
+    /**
+     * Page download in progress.
+     */
+    private static class Download {
+        private final Page.Link link;
+        private final Future<Processed> future;
+        private final long startTime;
+
+        private Download(Page.Link link, Future<Processed> future, long startTime) {
+            this.link = link;
+            this.future = future;
+            this.startTime = startTime;
+        }
 
-            i++;
-            iterator.remove();
+        public Page.Link getLink() {
+            return link;
         }
-        fThirdLevel.clear();
-    }
 
-    public static class GetFileTask implements Callable<Document> {
+        public Future<Processed> getFuture() {
+            return future;
+        }
 
-        private final String url;
+        public long getStartTime() {
+            return startTime;
+        }
+    }
+
+    /**
+     * Processed page: the page itself is already stored, only its links are kept.
+     */
+    private static class Processed {
+        private final List<Page.Link> links;
+        private final int bytes;
+        private final boolean unchanged;
+
+        private Processed(List<Page.Link> links, int bytes, boolean unchanged) {
+            this.links = links;
+            this.bytes = bytes;
+            this.unchanged = unchanged;
+        }
 
-        public GetFileTask(String url) {
-            this.url = url;
+        public List<Page.Link> getLinks() {
+            return links;
         }
 
-        @Override
-        public Document call() throws Exception {
-            return Shared.download(url);
+        public int getBytes() {
+            return bytes;
         }
 
-        @Override
-        public String toString() {
-            return url;
+        public boolean isUnchanged() {
+            return unchanged;
         }
     }
 
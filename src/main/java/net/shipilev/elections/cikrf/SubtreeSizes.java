@@ -0,0 +1,212 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package net.shipilev.elections.cikrf;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Expected subtree sizes of the pages, for scheduling the largest subtrees first.
+ *
+ * Sizes observed by the previous run are read from the hints file, and take precedence.
+ * Pages never seen before are estimated by the fan-out seen so far on their level.
+ * At the end of the crawl, the observed sizes are written back to the hints file.
+ *
+ * Not thread-safe.
+ */
+public class SubtreeSizes {
+
+    public static final String FILE_NAME = "subtrees.txt";
+
+    private final File file;
+
+    /**
+     * Sizes from the previous run: canonical URL -> number of pages in subtree, including the page itself.
+     */
+    private final Map<String, Integer> previous;
+    private final Map<Level, long[]> previousByLevel;
+
+    /**
+     * Sizes observed in this run, for the pages which have children.
+     */
+    private final Map<String, Integer> observed;
+    private final Map<String, Level> observedLevels;
+    private final Map<String, String> parents;
+
+    /**
+     * Links found on the completed pages: [parent level][child level].
+     */
+    private final int[][] children;
+    private final int[] completed;
+
+    public SubtreeSizes(File file) throws IOException {
+        this.file = file;
+        this.previous = new HashMap<String, Integer>();
+        this.previousByLevel = new EnumMap<Level, long[]>(Level.class);
+        this.observed = new HashMap<String, Integer>();
+        this.observedLevels = new HashMap<String, Level>();
+        this.parents = new HashMap<String, String>();
+        this.children = new int[Level.values().length][Level.values().length];
+        this.completed = new int[Level.values().length];
+
+        for (Level level : Level.values()) {
+            previousByLevel.put(level, new long[2]);
+        }
+
+        if (file.exists()) {
+            load();
+        }
+    }
+
+    private void load() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 3) {
+                    continue;
+                }
+                int size = Integer.parseInt(fields[0]);
+                Level level = Level.valueOf(fields[1]);
+                previous.put(Frontier.canonicalize(fields[2]), size);
+
+                long[] sum = previousByLevel.get(level);
+                sum[0] += size;
+                sum[1]++;
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Records the link found on the page.
+     * @param parent canonical URL of the page
+     * @param parentLevel level of the page
+     * @param child canonical URL of the link
+     * @param level level of the link
+     */
+    public void discovered(String parent, Level parentLevel, String child, Level level) {
+        children[parentLevel.ordinal()][level.ordinal()]++;
+
+        if (level != Level.THIRD) {
+            parents.put(child, parent);
+        }
+
+        /**
+         * Новая страница увеличивает поддеревья всех предков.
+         */
+        if (!observed.containsKey(parent)) {
+            observed.put(parent, 1);
+            observedLevels.put(parent, parentLevel);
+        }
+        for (String p = parent; p != null; p = parents.get(p)) {
+            observed.put(p, observed.get(p) + 1);
+        }
+    }
+
+    /**
+     * Records the page completion: its links should be already recorded.
+     */
+    public void completed(Level level) {
+        completed[level.ordinal()]++;
+    }
+
+    /**
+     * @param url canonical URL
+     * @param level page level
+     * @return expected number of pages in the subtree, including the page itself
+     */
+    public int estimate(String url, Level level) {
+        Integer size = previous.get(url);
+        if (size != null) {
+            return size;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, Math.round(estimate(level)));
+    }
+
+    private double estimate(Level level) {
+        int l = level.ordinal();
+
+        if (completed[l] > 0) {
+            double size = 1;
+            for (int c = l + 1; c < completed.length; c++) {
+                size += (double) children[l][c] / completed[l] * estimate(Level.values()[c]);
+            }
+            return size;
+        }
+
+        long[] prev = previousByLevel.get(level);
+        if (prev[1] > 0) {
+            return (double) prev[0] / prev[1];
+        }
+
+        /**
+         * Ничего не знаем: чем ближе к корню, тем больше поддерево.
+         */
+        return Level.values().length - l;
+    }
+
+    /**
+     * Writes the sizes observed in this run, keeping the sizes of the pages this run had not seen.
+     */
+    public void save() throws IOException {
+        Map<String, String> lines = new TreeMap<String, String>();
+        for (Map.Entry<String, Integer> e : observed.entrySet()) {
+            lines.put(e.getKey(), e.getValue() + "\t" + observedLevels.get(e.getKey()).name() + "\t" + e.getKey());
+        }
+
+        if (file.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length == 3 && !lines.containsKey(Frontier.canonicalize(fields[2]))) {
+                        lines.put(Frontier.canonicalize(fields[2]), line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        PrintWriter pw = new PrintWriter(tmp, "UTF-8");
+        for (String line : lines.values()) {
+            pw.println(line);
+        }
+        pw.close();
+
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Can not write " + file);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,696 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package net.shipilev.elections.cikrf;
+
+import org.jsoup.nodes.Entities;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Single-pass extractor for CIK result tables, without DOM.
+ *
+ * Walks the page once, tracking the stack of open tags the same way Jsoup tree builder does,
+ * and collects the cell texts of the row description table and the data table, and the breadcrumb links.
+ * It knows only the markup CIK pages are made of: on anything else (tags it does not know, misnested tags,
+ * content Jsoup would move out of the tables) it gives up, and the caller should parse the page with Jsoup.
+ */
+public class TableScanner {
+
+    /**
+     * Paths below body, in the usual layout. In the other one, everything is wrapped in a link.
+     */
+    private static final List<String> DESCRIPTIONS = Arrays.asList("table", "tbody", "tr", "td", "table", "tbody", "tr", "td", "table", "tbody", "tr");
+    private static final List<String> DATA = Arrays.asList("table", "tbody", "tr", "td", "table", "tbody", "tr", "td", "div", "table", "tbody", "tr");
+    private static final List<String> LINKS = Arrays.asList("table", "tbody", "tr", "td");
+
+    /**
+     * Tags Jsoup treats as blocks when collecting the text.
+     */
+    private static final Set<String> BLOCK = new HashSet<String>(Arrays.asList(
+            "html", "head", "body", "frameset", "script", "noscript", "style", "meta", "link", "title", "frame", "noframes",
+            "section", "nav", "aside", "hgroup", "header", "footer", "p", "h1", "h2", "h3", "h4", "h5", "h6", "ul", "ol",
+            "pre", "div", "blockquote", "hr", "address", "figure", "figcaption", "form", "fieldset", "ins", "del", "dl",
+            "dt", "dd", "li", "table", "caption", "thead", "tfoot", "tbody", "colgroup", "col", "tr", "th", "td",
+            "video", "audio", "canvas", "details", "menu", "plaintext"
+    ));
+
+    private static final Set<String> VOID = new HashSet<String>(Arrays.asList(
+            "br", "img", "wbr", "meta", "link", "base"
+    ));
+
+    private static final Set<String> INLINE = new HashSet<String>(Arrays.asList(
+            "a", "nobr", "b", "i", "u", "font", "span", "strong", "small", "big", "em", "div", "center"
+    ));
+
+    private static final Set<String> TABLE_CONTEXT = new HashSet<String>(Arrays.asList(
+            "table", "tbody", "tr"
+    ));
+
+    private final String s;
+    private int pos;
+
+    private boolean inBody;
+    private final List<String> stack;
+
+    private List<String> row;
+    private int rowDepth;
+    private StringBuilder cell;
+    private int cellDepth;
+
+    private StringBuilder link;
+    private int linkDepth;
+    private boolean linkWrapped;
+
+    private final Result result;
+
+    private TableScanner(String s) {
+        this.s = s;
+        this.stack = new ArrayList<String>();
+        this.result = new Result();
+    }
+
+    /**
+     * Scans the page.
+     * @param html decoded page
+     * @return tables and links, or null if page should be parsed with Jsoup
+     */
+    public static Result scan(String html) {
+        TableScanner scanner = new TableScanner(html);
+        try {
+            scanner.run();
+        } catch (Unrecognized e) {
+            return null;
+        }
+        return scanner.result;
+    }
+
+    private void run() {
+        int len = s.length();
+        int textStart = 0;
+        while (pos < len) {
+            if (s.charAt(pos) != '<' || pos + 1 >= len) {
+                pos++;
+                continue;
+            }
+
+            char next = s.charAt(pos + 1);
+            boolean closing = (next == '/');
+            if (next == '!' || next == '?') {
+                text(textStart, pos);
+                skipDeclaration();
+                textStart = pos;
+                continue;
+            }
+            if (closing) {
+                if (pos + 2 >= len || !isLetter(s.charAt(pos + 2))) {
+                    throw new Unrecognized();
+                }
+            } else if (!isLetter(next)) {
+                // not a tag, just stray '<'
+                pos++;
+                continue;
+            }
+
+            text(textStart, pos);
+            pos += closing ? 2 : 1;
+
+            int nameStart = pos;
+            while (pos < len && !isSpace(s.charAt(pos)) && s.charAt(pos) != '/' && s.charAt(pos) != '>') {
+                pos++;
+            }
+            String name = s.substring(nameStart, pos).toLowerCase();
+
+            String href = null;
+            boolean selfClosing = false;
+            while (true) {
+                if (pos >= len) {
+                    throw new Unrecognized();
+                }
+                char c = s.charAt(pos);
+                if (c == '>') {
+                    pos++;
+                    break;
+                }
+                if (isSpace(c)) {
+                    pos++;
+                    continue;
+                }
+                if (c == '/') {
+                    pos++;
+                    selfClosing = (pos < len && s.charAt(pos) == '>');
+                    continue;
+                }
+
+                int attrStart = pos;
+                while (pos < len && !isSpace(s.charAt(pos)) && "/=>".indexOf(s.charAt(pos)) < 0) {
+                    pos++;
+                }
+                boolean isHref = (pos - attrStart == 4) && s.regionMatches(true, attrStart, "href", 0, 4);
+
+                while (pos < len && isSpace(s.charAt(pos))) {
+                    pos++;
+                }
+
+                int valueStart = pos;
+                int valueEnd = pos;
+                if (pos < len && s.charAt(pos) == '=') {
+                    pos++;
+                    while (pos < len && isSpace(s.charAt(pos))) {
+                        pos++;
+                    }
+                    if (pos < len && (s.charAt(pos) == '"' || s.charAt(pos) == '\'')) {
+                        char quote = s.charAt(pos++);
+                        valueStart = pos;
+                        valueEnd = s.indexOf(quote, pos);
+                        if (valueEnd < 0) {
+                            throw new Unrecognized();
+                        }
+                        pos = valueEnd + 1;
+                    } else {
+                        valueStart = pos;
+                        while (pos < len && !isSpace(s.charAt(pos)) && s.charAt(pos) != '>') {
+                            pos++;
+                        }
+                        valueEnd = pos;
+                    }
+                }
+
+                if (isHref) {
+                    if (href != null) {
+                        throw new Unrecognized();
+                    }
+                    href = decode(valueStart, valueEnd, true);
+                }
+            }
+
+            if (closing) {
+                endTag(name);
+            } else {
+                if (selfClosing && !VOID.contains(name)) {
+                    throw new Unrecognized();
+                }
+                startTag(name, href);
+                if ("script".equals(name) || "style".equals(name) || "title".equals(name)) {
+                    skipRawText(name);
+                }
+            }
+            textStart = pos;
+        }
+        text(textStart, len);
+
+        while (!stack.isEmpty()) {
+            pop();
+        }
+    }
+
+    private void startTag(String name, String href) {
+        if (!inBody) {
+            if ("html".equals(name) || "head".equals(name) || "meta".equals(name) || "link".equals(name)
+                    || "base".equals(name) || "title".equals(name) || "script".equals(name) || "style".equals(name)) {
+                return;
+            }
+            enterBody();
+        }
+
+        if ("html".equals(name) || "head".equals(name) || "body".equals(name)) {
+            return;
+        }
+
+        if (!TABLE_CONTEXT.contains(top()) && ("td".equals(name) || "th".equals(name) || "tr".equals(name))) {
+            /**
+             * Новая ячейка или строка неявно закрывает текущую ячейку.
+             */
+            int c = nearest("td", "th", "table");
+            if (c < 0 || "table".equals(stack.get(c))) {
+                throw new Unrecognized();
+            }
+            popTo(c);
+        }
+
+        if (cell != null) {
+            /**
+             * Jsoup отделяет пробелом текст блоков внутри ячейки.
+             */
+            if (BLOCK.contains(name) && cell.length() > 0 && !endsWithSpace(cell)) {
+                cell.append(' ');
+            }
+            if ("br".equals(name) && !endsWithSpace(cell)) {
+                cell.append(' ');
+            }
+        }
+        if (link != null && stack.size() == linkDepth && "br".equals(name) && !endsWithSpace(link)) {
+            link.append(' ');
+        }
+
+        if (TABLE_CONTEXT.contains(top())) {
+            tableStartTag(top(), name);
+            return;
+        }
+
+        if ("meta".equals(name) || "link".equals(name) || "base".equals(name)
+                || "br".equals(name) || "img".equals(name) || "wbr".equals(name)) {
+            return;
+        }
+        if ("script".equals(name) || "style".equals(name) || "title".equals(name)) {
+            if (cell != null || link != null) {
+                throw new Unrecognized();
+            }
+            return;
+        }
+
+        if ("table".equals(name)) {
+            stack.add(name);
+            return;
+        }
+
+        if (!INLINE.contains(name)) {
+            throw new Unrecognized();
+        }
+
+        if ("a".equals(name) || "nobr".equals(name)) {
+            /**
+             * Вложенные ссылки Jsoup перестраивает, такое оставим ему.
+             */
+            int boundary = nearest("td", "th");
+            for (int i = boundary + 1; i < stack.size(); i++) {
+                if (stack.get(i).equals(name)) {
+                    throw new Unrecognized();
+                }
+            }
+        }
+
+        boolean wrapped = matches(LINKS, true);
+        boolean breadcrumb = "a".equals(name) && href != null && href.contains("region") && (wrapped || matches(LINKS, false));
+
+        stack.add(name);
+
+        if (breadcrumb) {
+            link = new StringBuilder();
+            linkDepth = stack.size();
+            linkWrapped = wrapped;
+        }
+    }
+
+    /**
+     * Start tag right inside table, table body or row.
+     */
+    private void tableStartTag(String top, String name) {
+        if ("tbody".equals(name)) {
+            popTo(nearest("table") + 1);
+            stack.add(name);
+        } else if ("tr".equals(name)) {
+            if ("table".equals(top)) {
+                stack.add("tbody");
+            } else if ("tr".equals(top)) {
+                pop();
+            }
+            stack.add(name);
+            startRow();
+        } else if (("td".equals(name) || "th".equals(name)) && "tr".equals(top)) {
+            boolean rowCell = (row != null && stack.size() == rowDepth);
+            stack.add(name);
+            if (rowCell) {
+                cell = new StringBuilder();
+                cellDepth = stack.size();
+            }
+        } else {
+            throw new Unrecognized();
+        }
+    }
+
+    private void startRow() {
+        for (int w = 0; w < 2; w++) {
+            boolean wrapped = (w == 1);
+            if (matches(DESCRIPTIONS, wrapped)) {
+                row = new ArrayList<String>();
+                rowDepth = stack.size();
+                result.addDescriptions(wrapped, row);
+            } else if (matches(DATA, wrapped)) {
+                row = new ArrayList<String>();
+                rowDepth = stack.size();
+                result.addData(wrapped, row);
+            }
+        }
+    }
+
+    private void endTag(String name) {
+        if (!inBody) {
+            if ("head".equals(name)) {
+                return;
+            }
+            throw new Unrecognized();
+        }
+
+        if ("body".equals(name) || "html".equals(name) || "head".equals(name)) {
+            return;
+        }
+
+        if ("td".equals(name) || "th".equals(name)) {
+            closeTable(name, nearest("td", "th", "table"));
+        } else if ("tr".equals(name)) {
+            closeTable(name, nearest("tr", "table"));
+        } else if ("tbody".equals(name)) {
+            closeTable(name, nearest("tbody", "table"));
+        } else if ("table".equals(name)) {
+            closeTable(name, nearest("table"));
+        } else if (top().equals(name)) {
+            pop();
+        } else {
+            throw new Unrecognized();
+        }
+    }
+
+    private void closeTable(String name, int index) {
+        if (index < 0 || !stack.get(index).equals(name)) {
+            throw new Unrecognized();
+        }
+        popTo(index);
+    }
+
+    private void text(int from, int to) {
+        if (from >= to) {
+            return;
+        }
+
+        if (!inBody || TABLE_CONTEXT.contains(top())) {
+            /**
+             * Текст прямо в таблице Jsoup выносит из неё.
+             */
+            for (int i = from; i < to; i++) {
+                if (!isSpace(s.charAt(i))) {
+                    if (inBody) {
+                        throw new Unrecognized();
+                    }
+                    enterBody();
+                    text(from, to);
+                    return;
+                }
+            }
+            return;
+        }
+
+        if (cell == null && link == null) {
+            return;
+        }
+
+        String text = decode(from, to, false);
+        if (cell != null) {
+            appendNormalised(cell, text);
+        }
+        if (link != null && stack.size() == linkDepth) {
+            appendNormalised(link, text);
+        }
+    }
+
+    private String top() {
+        return stack.get(stack.size() - 1);
+    }
+
+    private void enterBody() {
+        inBody = true;
+        stack.add("body");
+    }
+
+    /**
+     * Pops everything down to index, inclusive.
+     */
+    private void popTo(int index) {
+        while (stack.size() > index) {
+            pop();
+        }
+    }
+
+    private void pop() {
+        if (cell != null && stack.size() == cellDepth) {
+            row.add(cell.toString().trim());
+            cell = null;
+        }
+        if (link != null && stack.size() == linkDepth) {
+            result.addLink(linkWrapped, link.toString().trim());
+            link = null;
+        }
+        if (row != null && stack.size() == rowDepth) {
+            row = null;
+        }
+        stack.remove(stack.size() - 1);
+    }
+
+    /**
+     * @return index of the topmost tag from the list, or -1
+     */
+    private int nearest(String... names) {
+        for (int i = stack.size() - 1; i >= 0; i--) {
+            for (String name : names) {
+                if (stack.get(i).equals(name)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches(List<String> path, boolean wrapped) {
+        int offset = wrapped ? 2 : 1;
+        if (stack.size() != path.size() + offset) {
+            return false;
+        }
+        if (wrapped && !"a".equals(stack.get(1))) {
+            return false;
+        }
+        for (int i = 0; i < path.size(); i++) {
+            if (!path.get(i).equals(stack.get(i + offset))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skipDeclaration() {
+        if (s.startsWith("<!--", pos)) {
+            if (s.startsWith("<!-->", pos) || s.startsWith("<!--->", pos)) {
+                throw new Unrecognized();
+            }
+            int end = s.indexOf("-->", pos + 4);
+            if (end < 0) {
+                throw new Unrecognized();
+            }
+            pos = end + 3;
+        } else {
+            int end = s.indexOf('>', pos);
+            if (end < 0) {
+                throw new Unrecognized();
+            }
+            pos = end + 1;
+        }
+    }
+
+    /**
+     * Skips the contents of script, style or title.
+     */
+    private void skipRawText(String name) {
+        int from = pos;
+        while (true) {
+            int end = s.indexOf("</", from);
+            if (end < 0) {
+                throw new Unrecognized();
+            }
+            int after = end + 2 + name.length();
+            if (s.regionMatches(true, end + 2, name, 0, name.length())
+                    && after < s.length() && (isSpace(s.charAt(after)) || s.charAt(after) == '/' || s.charAt(after) == '>')) {
+                int close = s.indexOf('>', after);
+                if (close < 0) {
+                    throw new Unrecognized();
+                }
+                pos = close + 1;
+                return;
+            }
+            from = end + 2;
+        }
+    }
+
+    /**
+     * Decodes character references the way Jsoup tokenizer does.
+     */
+    private String decode(int from, int to, boolean inAttribute) {
+        int amp = from;
+        while (amp < to && s.charAt(amp) != '&') {
+            amp++;
+        }
+        if (amp == to) {
+            return s.substring(from, to);
+        }
+
+        StringBuilder sb = new StringBuilder(to - from);
+        sb.append(s, from, amp);
+        int i = amp;
+        while (i < to) {
+            char c = s.charAt(i);
+            if (c != '&' || i + 1 >= to) {
+                sb.append(c);
+                i++;
+                continue;
+            }
+
+            int p = i + 1;
+            if (s.charAt(p) == '#') {
+                p++;
+                boolean hex = (p < to && (s.charAt(p) == 'x' || s.charAt(p) == 'X'));
+                if (hex) {
+                    p++;
+                }
+                int digitsStart = p;
+                while (p < to && Character.digit(s.charAt(p), hex ? 16 : 10) >= 0 && s.charAt(p) < 0x80) {
+                    p++;
+                }
+                if (p == digitsStart) {
+                    sb.append(c);
+                    i++;
+                    continue;
+                }
+                int value;
+                try {
+                    value = Integer.parseInt(s.substring(digitsStart, p), hex ? 16 : 10);
+                } catch (NumberFormatException e) {
+                    throw new Unrecognized();
+                }
+                if (value <= 0 || value > 0xFFFF || (value >= 0xD800 && value <= 0xDFFF)) {
+                    throw new Unrecognized();
+                }
+                sb.append((char) value);
+                if (p < to && s.charAt(p) == ';') {
+                    p++;
+                }
+                i = p;
+                continue;
+            }
+
+            while (p < to && isLetter(s.charAt(p))) {
+                p++;
+            }
+            while (p < to && s.charAt(p) >= '0' && s.charAt(p) <= '9') {
+                p++;
+            }
+            int nameEnd = p;
+            while (nameEnd > i + 1 && !Entities.isNamedEntity(s.substring(i + 1, nameEnd))) {
+                nameEnd--;
+            }
+            if (nameEnd == i + 1) {
+                sb.append(c);
+                i++;
+                continue;
+            }
+            if (inAttribute && nameEnd < to) {
+                char after = s.charAt(nameEnd);
+                if (isLetter(after) || (after >= '0' && after <= '9') || after == '=' || after == '-' || after == '_') {
+                    sb.append(c);
+                    i++;
+                    continue;
+                }
+            }
+            sb.append(Entities.getCharacterByName(s.substring(i + 1, nameEnd)).charValue());
+            i = nameEnd;
+            if (i < to && s.charAt(i) == ';') {
+                i++;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends text with whitespace collapsed, as Jsoup Element.text() does.
+     */
+    private static void appendNormalised(StringBuilder sb, String text) {
+        boolean lastWasWhite = endsWithSpace(sb);
+        for (int i = 0; i < text.length(); i++) {
+            int c = text.codePointAt(i);
+            if (Character.isWhitespace(c)) {
+                if (!lastWasWhite) {
+                    sb.append(' ');
+                    lastWasWhite = true;
+                }
+            } else {
+                sb.appendCodePoint(c);
+                lastWasWhite = false;
+            }
+        }
+    }
+
+    private static boolean endsWithSpace(StringBuilder sb) {
+        return sb.length() > 0 && sb.charAt(sb.length() - 1) == ' ';
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    /**
+     * Page has the markup we do not handle.
+     */
+    private static class Unrecognized extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    /**
+     * Cell texts of the tables, and breadcrumb link texts: in the usual layout, and wrapped in a link.
+     */
+    public static class Result {
+        private final List<List<String>> descriptions = new ArrayList<List<String>>();
+        private final List<List<String>> data = new ArrayList<List<String>>();
+        private final List<String> links = new ArrayList<String>();
+        private final List<List<String>> wrappedDescriptions = new ArrayList<List<String>>();
+        private final List<List<String>> wrappedData = new ArrayList<List<String>>();
+        private final List<String> wrappedLinks = new ArrayList<String>();
+
+        void addDescriptions(boolean wrapped, List<String> row) {
+            (wrapped ? wrappedDescriptions : descriptions).add(row);
+        }
+
+        void addData(boolean wrapped, List<String> row) {
+            (wrapped ? wrappedData : data).add(row);
+        }
+
+        void addLink(boolean wrapped, String text) {
+            (wrapped ? wrappedLinks : links).add(text);
+        }
+
+        public List<List<String>> getDescriptions(boolean wrapped) {
+            return Collections.unmodifiableList(wrapped ? wrappedDescriptions : descriptions);
+        }
+
+        public List<List<String>> getData(boolean wrapped) {
+            return Collections.unmodifiableList(wrapped ? wrappedData : data);
+        }
+
+        public List<String> getLinks(boolean wrapped) {
+            return Collections.unmodifiableList(wrapped ? wrappedLinks : links);
+        }
+    }
+
+}
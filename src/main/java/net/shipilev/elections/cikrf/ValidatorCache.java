@@ -0,0 +1,176 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package net.shipilev.elections.cikrf;
+
+import com.google.common.base.Strings;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the validators (ETag, Last-Modified, body hash) for the pages downloaded in the previous run.
+ * Used by incremental crawl to send conditional requests and skip rewriting unchanged pages.
+ */
+public class ValidatorCache {
+
+    public static final String FILE_NAME = "validators.txt";
+
+    private final File file;
+    private final Map<String, Entry> previous;
+    private final ConcurrentMap<String, Entry> current;
+
+    public ValidatorCache(String dir) throws IOException {
+        this.file = new File(dir, FILE_NAME);
+        this.previous = new TreeMap<String, Entry>();
+        this.current = new ConcurrentHashMap<String, Entry>();
+
+        if (file.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", -1);
+                    if (fields.length != 5) {
+                        continue;
+                    }
+
+                    Level level;
+                    try {
+                        level = Level.valueOf(fields[1]);
+                    } catch (IllegalArgumentException e) {
+                        // written by older version, will re-download
+                        continue;
+                    }
+                    previous.put(fields[0], new Entry(fields[0], level, Strings.emptyToNull(fields[2]), Strings.emptyToNull(fields[3]), fields[4]));
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Gets the validators from the previous run.
+     * @param url page URL
+     * @return validators; null, if page was not seen before
+     */
+    public Entry get(String url) {
+        return previous.get(url);
+    }
+
+    /**
+     * Records the validators for the page downloaded in current run.
+     */
+    public void put(Entry entry) {
+        current.put(entry.getUrl(), entry);
+    }
+
+    /**
+     * Carries the validators from the previous run over to current one, without re-downloading the page.
+     */
+    public void retain(String url) {
+        Entry entry = previous.get(url);
+        if (entry != null) {
+            current.putIfAbsent(url, entry);
+        }
+    }
+
+    /**
+     * @return pages seen in the previous run, but not in the current one
+     */
+    public Collection<Entry> stale() {
+        List<Entry> result = new ArrayList<Entry>();
+        for (Entry e : previous.values()) {
+            if (!current.containsKey(e.getUrl())) {
+                result.add(e);
+            }
+        }
+        return result;
+    }
+
+    public void save() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        PrintWriter pw = new PrintWriter(tmp, "UTF-8");
+        for (Entry e : new TreeMap<String, Entry>(current).values()) {
+            pw.print(e.getUrl());
+            pw.print("\t");
+            pw.print(e.getLevel().name());
+            pw.print("\t");
+            pw.print(Strings.nullToEmpty(e.getETag()));
+            pw.print("\t");
+            pw.print(Strings.nullToEmpty(e.getLastModified()));
+            pw.print("\t");
+            pw.println(e.getHash());
+        }
+        pw.close();
+
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Can not write " + file);
+            }
+        }
+    }
+
+    public static class Entry {
+        private final String url;
+        private final Level level;
+        private final String eTag;
+        private final String lastModified;
+        private final String hash;
+
+        public Entry(String url, Level level, String eTag, String lastModified, String hash) {
+            this.url = url;
+            this.level = level;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public Level getLevel() {
+            return level;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package net.shipilev.elections.cikrf;
+
+import com.google.common.io.ByteStreams;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks {@link PageScanner} against Jsoup selectors it replaces, on the pages of every level
+ * and the login form, as served and with the markup variations of the real site.
+ */
+public class PageScannerTest {
+
+    private static final String CHARSET = "cp1251";
+
+    private static final String[] PAGES = { "root.html", "region.html", "tik.html", "uik.html", "key.html" };
+
+    @Test
+    public void pagesAsServed() throws IOException {
+        Assert.assertFalse(PageScanner.scan(load("root.html").getBytes(CHARSET)).getNobrLinks().isEmpty());
+        Assert.assertFalse(PageScanner.scan(load("tik.html").getBytes(CHARSET)).getUikLinks().isEmpty());
+        Assert.assertNotNull(PageScanner.scan(load("key.html").getBytes(CHARSET)).getLoginKey());
+
+        for (String page : PAGES) {
+            assertSame(page, load(page));
+        }
+    }
+
+    @Test
+    public void attributeQuoting() throws IOException {
+        for (String page : PAGES) {
+            String html = load(page);
+            assertSame(page, html.replaceAll("(href|name|value)=\"([^\"]*)\"", "$1='$2'"));
+            assertSame(page, html.replaceAll("(href|name|value)=\"([^\" ]*)\"", "$1=$2"));
+        }
+    }
+
+    @Test
+    public void tagAndAttributeCase() throws IOException {
+        for (String page : PAGES) {
+            String html = load(page);
+            assertSame(page, html.replace("<a ", "<A ").replace("</a>", "</A>").replace("href=", "HREF="));
+            assertSame(page, html.replace("<td>", "<TD>").replace("<nobr>", "<NOBR>").replace("<div ", "<DIV "));
+            assertSame(page, html.replace("<form ", "<FORM ").replace("<input ", "<INPUT ").replace("name=", "Name="));
+        }
+    }
+
+    @Test
+    public void whitespace() throws IOException {
+        for (String page : PAGES) {
+            String html = load(page);
+            assertSame(page, html.replace("<a href=", "<a\n  href = ").replace("<td>", "<td >").replace("<nobr>", "<nobr\t>"));
+            assertSame(page, html.replace("<tr>", "<tr>\n  ").replace("</td>", " </td>\n").replace("<input ", "<input\n"));
+            assertSame(page, html.replace("\">", "\" >").replace("name=\"key\"", "name = \"key\""));
+        }
+    }
+
+    @Test
+    public void entitiesInHrefs() throws IOException {
+        for (String page : PAGES) {
+            String html = load(page);
+            assertSame(page, html.replace("?node=", "?vrn=1&amp;node="));
+            assertSame(page, html.replace("?node=", "?vrn=1&amp;node=").replace("&amp;", "&amp"));
+            assertSame(page, html.replace("?node=", "&#63;node=").replace("region", "&#x72;egion"));
+        }
+    }
+
+    @Test
+    public void missingKey() throws IOException {
+        String html = load("key.html");
+        String noKey = html.replace("name=\"key\" ", "");
+        Assert.assertNull(PageScanner.scan(noKey.getBytes(CHARSET)).getLoginKey());
+        assertSame("key.html", noKey);
+        assertSame("key.html", html.replace("<form", "<div><form").replace("</form>", "</form></div>"));
+    }
+
+    private static String load(String name) throws IOException {
+        InputStream is = PageScannerTest.class.getResourceAsStream(name);
+        Assert.assertNotNull("No test page " + name, is);
+        try {
+            return Page.decode(ByteStreams.toByteArray(is));
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void assertSame(String name, String html) throws IOException {
+        byte[] body = html.getBytes(CHARSET);
+        PageScanner.Result scanned = PageScanner.scan(body);
+        Document document = Jsoup.parse(Page.decode(body));
+
+        List<String> nobrLinks = new ArrayList<String>();
+        for (Element link : document.select("html > body > table > tbody > tr > td > table > tbody > tr > td > div > table > tbody > tr > td > nobr > a[href]")) {
+            nobrLinks.add(link.attr("href"));
+        }
+
+        List<String> uikLinks = new ArrayList<String>();
+        for (Element link : document.select("html > body > table > tbody > tr > td > a")) {
+            if (link.ownText().contains("сайт избирательной комиссии субъекта Российской Федерации")) {
+                uikLinks.add(link.attr("href"));
+            }
+        }
+
+        Integer loginKey = null;
+        for (Element e : document.select("html > body > form > input")) {
+            if ("key".equals(e.attr("name"))) {
+                loginKey = Integer.valueOf(e.attr("value"));
+                break;
+            }
+        }
+
+        Assert.assertEquals(name + ":\n" + html, nobrLinks, scanned.getNobrLinks());
+        Assert.assertEquals(name + ":\n" + html, uikLinks, scanned.getUikLinks());
+        Assert.assertEquals(name + ":\n" + html, loginKey, scanned.getLoginKey());
+    }
+
+}
@@ -0,0 +1,73 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package net.shipilev.elections.cikrf;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Checks that parser output does not depend on the order pages come in.
+ */
+public class ParserTest {
+
+    @Test
+    public void rowLabelsDoNotDependOnPageOrder() throws IOException {
+        String uik = Page.decode(load("uik.html"));
+        String first = uik.replace("Число погашенных избирательных бюллетеней", "Число погашенных бюллетеней");
+        String second = uik.replace("ТИК №1-1", "ТИК №1-2").replace("УИК №101", "УИК №201");
+
+        File forward = parse(first, second);
+        File backward = parse(second, first);
+
+        String[] files = forward.list();
+        Arrays.sort(files);
+        Assert.assertTrue(Arrays.asList(files).contains("output-uiks.csv"));
+        for (String file : files) {
+            Assert.assertArrayEquals(file,
+                    Files.toByteArray(new File(forward, file)),
+                    Files.toByteArray(new File(backward, file)));
+        }
+    }
+
+    private static File parse(String... pages) throws IOException {
+        File dir = Files.createTempDir();
+        Parser parser = new Parser(dir.getPath());
+        for (int i = 0; i < pages.length; i++) {
+            parser.accept(Level.SECOND, "second-" + i, pages[i].getBytes("cp1251"));
+        }
+        parser.finish(null);
+        return dir;
+    }
+
+    private static byte[] load(String name) throws IOException {
+        InputStream is = ParserTest.class.getResourceAsStream(name);
+        Assert.assertNotNull("No test page " + name, is);
+        try {
+            return ByteStreams.toByteArray(is);
+        } finally {
+            is.close();
+        }
+    }
+
+}
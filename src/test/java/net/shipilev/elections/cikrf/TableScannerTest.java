@@ -0,0 +1,111 @@
+/**
+ Copyright 2012 Aleksey Shipilev
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package net.shipilev.elections.cikrf;
+
+import com.google.common.io.ByteStreams;
+import org.jsoup.Jsoup;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Checks {@link TableScanner} against Jsoup selectors it replaces, on the pages of every level,
+ * as served and with the markup quirks the real site has.
+ */
+public class TableScannerTest {
+
+    private static final String[] PAGES = { "root.html", "region.html", "tik.html", "uik.html" };
+
+    @Test
+    public void pagesAsServed() throws IOException {
+        for (String page : PAGES) {
+            assertSame(page, load(page));
+        }
+    }
+
+    @Test
+    public void nestedNobr() throws IOException {
+        for (String page : PAGES) {
+            String html = load(page);
+            String nested = html.replace("<nobr>", "<nobr><nobr>").replace("</nobr>", "</nobr></nobr>");
+            if (html.contains("<nobr>")) {
+                // Jsoup rebuilds nested nobr, scanner leaves such pages to it
+                Assert.assertNull("Scanner took nested nobr in " + page, TableScanner.scan(nested));
+            } else {
+                assertSame(page, nested);
+            }
+        }
+    }
+
+    @Test
+    public void missingCellEnds() throws IOException {
+        for (String page : PAGES) {
+            assertSame(page, load(page).replace("</td>", ""));
+            assertSame(page, load(page).replace("</td>", "").replace("</tr>", ""));
+        }
+    }
+
+    @Test
+    public void entities() throws IOException {
+        for (String page : PAGES) {
+            assertSame(page, load(page).replace("<b>", "<b>&nbsp;&amp;&lt;&#1040;&#x41a;&quot; "));
+            assertSame(page, load(page).replace("</b>", " &copy&gt</b>"));
+            assertSame(page, load(page).replace("</td>", "&notit;&amp</td>"));
+        }
+    }
+
+    @Test
+    public void wrappedInLink() throws IOException {
+        for (String page : PAGES) {
+            assertSame(page, load(page).replace("<body>", "<body><a name=\"top\">").replace("</body>", "</a></body>"));
+        }
+    }
+
+    @Test
+    public void tagCaseAndSpacing() throws IOException {
+        for (String page : PAGES) {
+            assertSame(page, load(page).replace("<td>", "<TD>").replace("</table>", "</TABLE >"));
+            assertSame(page, load(page).replace("<tr>", "<tr>\n  ").replace("<td>", "<td> \t"));
+        }
+    }
+
+    private static String load(String name) throws IOException {
+        InputStream is = TableScannerTest.class.getResourceAsStream(name);
+        Assert.assertNotNull("No test page " + name, is);
+        try {
+            return Page.decode(ByteStreams.toByteArray(is));
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void assertSame(String name, String html) {
+        TableScanner.Result scanned = TableScanner.scan(html);
+        Assert.assertNotNull("Scanner gave up on " + name + ":\n" + html, scanned);
+
+        TableScanner.Result selected = Parser.select(Jsoup.parse(html));
+        for (int w = 0; w < 2; w++) {
+            boolean wrapped = (w == 1);
+            Assert.assertEquals(name, selected.getDescriptions(wrapped), scanned.getDescriptions(wrapped));
+            Assert.assertEquals(name, selected.getData(wrapped), scanned.getData(wrapped));
+            Assert.assertEquals(name, selected.getLinks(wrapped), scanned.getLinks(wrapped));
+        }
+    }
+
+}